@@ -1,26 +1,35 @@
 package io.jenkins.plugins.agent_build_history;
 
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.Action;
 import hudson.model.Api;
 import hudson.model.Computer;
 import hudson.model.Job;
 import hudson.model.Node;
-import hudson.model.Result;
 import hudson.model.Run;
-import hudson.util.RunList;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletResponse;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import jenkins.model.Jenkins;
-import jenkins.util.Timer;
+import jenkins.security.ImpersonatingExecutorService;
+import jenkins.util.SystemProperties;
 import org.jenkinsci.plugins.workflow.actions.BodyInvocationAction;
 import org.jenkinsci.plugins.workflow.cps.nodes.StepStartNode;
 import org.jenkinsci.plugins.workflow.flow.FlowExecution;
@@ -34,15 +43,40 @@ import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+import org.kohsuke.stapler.verb.GET;
 
 @Restricted(NoExternalUse.class)
 public class AgentBuildHistory implements Action {
 
   private static final Logger LOGGER = Logger.getLogger(AgentBuildHistory.class.getName());
   private final Computer computer;
-  private int totalPages = 1;
-  private static boolean loaded = false;
-  private static boolean loadingComplete = false;
+  // Limits the threads that load the rows of history pages, shared by all requests
+  private static final int PAGE_LOAD_THREADS = SystemProperties.getInteger(AgentBuildHistory.class.getName() + ".pageLoadThreads", 8);
+  private static final long PAGE_LOAD_TIMEOUT = SystemProperties.getLong(AgentBuildHistory.class.getName() + ".pageLoadTimeout", 30L);
+  private static final ExecutorService PAGE_LOADER = Executors.newFixedThreadPool(PAGE_LOAD_THREADS,
+      new NamingThreadFactory(new DaemonThreadFactory(), "AgentBuildHistory.pageLoader"));
+  // The synchronization of existing runs gets its own thread instead of the shared timer, it must see all jobs
+  private static final ExecutorService BACKFILL_SCHEDULER = new ImpersonatingExecutorService(
+      Executors.newSingleThreadExecutor(new NamingThreadFactory(new DaemonThreadFactory(), "AgentBuildHistory.backfill")),
+      ACL.SYSTEM2);
+  // Instances are shared by all requests for the computer, so they only hold static state
+  private static final AtomicBoolean loaded = new AtomicBoolean();
+  private static volatile boolean loadingComplete = false;
+
+  /**
+   * A page of executions with the number of pages, or -1 when they were not counted, the cursor of the next page
+   * for cursor pagination and the number of runs that were still loading when the page was returned. Pages are
+   * immutable and can be shared between requests.
+   */
+  public record ExecutionPage(List<AgentExecution> executions, int totalPages, String nextCursor, int pendingRuns) {
+
+    static final ExecutionPage EMPTY = new ExecutionPage(List.of(), 0, null, 0);
+
+    public ExecutionPage {
+      executions = List.copyOf(executions);
+    }
+  }
 
   public AgentBuildHistory(Computer computer) {
     this.computer = computer;
@@ -75,44 +109,61 @@ public class AgentBuildHistory implements Action {
     return loadingComplete;
   }
 
+  /*
+   * used by jelly, null when no synchronization is running
+   */
+  public HistoryBackfill.Progress getBackfillProgress() {
+    return HistoryBackfill.getProgress();
+  }
+
+  /*
+   * used by jelly
+   */
+  public String getBackfillRemaining() {
+    HistoryBackfill.Progress progress = HistoryBackfill.getProgress();
+    if (progress == null || progress.remainingMillis() < 0) {
+      return null;
+    }
+    return Util.getTimeSpanString(progress.remainingMillis());
+  }
+
   public static void setLoaded(boolean loaded) {
-    AgentBuildHistory.loaded = loaded;
+    AgentBuildHistory.loaded.set(loaded);
     AgentBuildHistory.loadingComplete = loaded;
   }
 
-  public int getTotalPages() {
-    return totalPages;
+  // Starts the synchronization of all runs on the first request
+  private static void ensureLoaded() {
+    if (loaded.compareAndSet(false, true)) {
+      BACKFILL_SCHEDULER.execute(AgentBuildHistory::load);
+    }
   }
 
-  @SuppressFBWarnings(value = "ST_WRITE_TO_STATIC_FROM_INSTANCE_METHOD")
   public Api getApi() {
-    if (!loaded) {
-      loaded = true;
-      Timer.get().schedule(AgentBuildHistory::load, 0, TimeUnit.SECONDS);
-    }
-    RunListTable runListTable = new RunListTable(computer.getName());
+    ensureLoaded();
     //Get Parameters from URL
     StaplerRequest2 req = Stapler.getCurrentRequest2();
     int pageSize = Utils.getRequestInteger(req, "limit", 100);
     int page = Utils.getRequestInteger(req, "page", 1);
+    String sortOrder = req.getParameter("sortOrder") != null ? req.getParameter("sortOrder") : "desc";
     String statusFilter = req.getParameter("status") != null ? req.getParameter("status") : "all";
-    List<String> indexLines = BuildHistoryFileManager.readIndexFile(computer.getName(), AgentBuildHistoryConfig.get().getStorageDir());
+    String after = req.getParameter("after");
 
     String uri = req.getRequestURI();
-    if (!uri.endsWith("/api/") && !uri.endsWith("/" + getUrlName() + "/")) {
-      runListTable.setRuns(getExecutionsForNode(indexLines, computer.getName(), page, pageSize, "startTime", "desc", statusFilter));
-      runListTable.compute();
+    if (uri.endsWith("/api/") || uri.endsWith("/" + getUrlName() + "/")) {
+      return new Api(new RunListTable(computer.getName(), ExecutionPage.EMPTY, null));
+    }
+    ExecutionPage executionPage;
+    if (after != null) {
+      executionPage = getExecutionsAfter(computer.getName(), after, pageSize, sortOrder, statusFilter);
+    } else {
+      executionPage = getExecutionsForNode(computer.getName(), page, pageSize, "startTime", sortOrder, statusFilter);
     }
-    return new Api(runListTable);
+    return new Api(new RunListTable(computer.getName(), executionPage, AgentBuildHistoryStorage.get().getStatusCounts(computer.getName())));
   }
 
-  @SuppressFBWarnings(value = "ST_WRITE_TO_STATIC_FROM_INSTANCE_METHOD")
   public RunListTable getHandler() {
-    if (!loaded) {
-      loaded = true;
-      Timer.get().schedule(AgentBuildHistory::load, 0, TimeUnit.SECONDS);
-    }
-    RunListTable runListTable = new RunListTable(computer.getName());
+    ensureLoaded();
     //Get Parameters from URL
     StaplerRequest2 req = Stapler.getCurrentRequest2();
     int page = Utils.getRequestInteger(req, "page", 1);
@@ -120,90 +171,123 @@ public class AgentBuildHistory implements Action {
     String sortColumn = req.getParameter("sortColumn") != null ? req.getParameter("sortColumn") : getCookieValue(req, "sortColumn", "startTime");
     String sortOrder = req.getParameter("sortOrder") != null ? req.getParameter("sortOrder") : getCookieValue(req, "sortOrder", "desc");
     String statusFilter = req.getParameter("status") != null ? req.getParameter("status") : "all";
-    List<String> indexLines = BuildHistoryFileManager.readIndexFile(computer.getName(), AgentBuildHistoryConfig.get().getStorageDir());
+    String after = req.getParameter("after");
 
     LOGGER.finer("Getting runs for node: " + computer.getName() + " page: " + page + " pageSize: " + pageSize + " sortColumn: " + sortColumn + " sortOrder: " + sortOrder);
-    LOGGER.finer("Found " + indexLines.size() + " entries for node " + computer.getName());
 
-    runListTable.setRuns(getExecutionsForNode(indexLines, computer.getName(), page, pageSize, sortColumn, sortOrder, statusFilter));
-    runListTable.compute();
-    return runListTable;
+    ExecutionPage executionPage;
+    if (after != null) {
+      executionPage = getExecutionsAfter(computer.getName(), after, pageSize, sortOrder, statusFilter);
+    } else {
+      executionPage = getExecutionsForNode(computer.getName(), page, pageSize, sortColumn, sortOrder, statusFilter);
+    }
+    return new RunListTable(computer.getName(), executionPage, AgentBuildHistoryStorage.get().getStatusCounts(computer.getName()));
+  }
+
+  /*
+   * Streams the whole history of the node as NDJSON or CSV, the parameters are format (ndjson or csv), fields
+   * (comma separated, see HistoryExporter), sortOrder and status.
+   */
+  @GET
+  public void doExport(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+    String sortOrder = req.getParameter("sortOrder") != null ? req.getParameter("sortOrder") : "desc";
+    String statusFilter = req.getParameter("status") != null ? req.getParameter("status") : "all";
+    HistoryExporter exporter;
+    try {
+      exporter = new HistoryExporter(HistoryExporter.normalizeFormat(req.getParameter("format")), HistoryExporter.parseFields(req.getParameter("fields")));
+    } catch (IllegalArgumentException e) {
+      rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+      return;
+    }
+    rsp.setContentType(exporter.getContentType());
+    rsp.setHeader("Content-Disposition", "attachment; filename=\"" + Util.rawEncode(computer.getName().isEmpty() ? "built-in" : computer.getName())
+        + "-history." + exporter.getFileExtension() + "\"");
+    exporter.export(computer.getName(), sortOrder, statusFilter, rsp.getWriter());
   }
 
   private record Execution(Job<?, ?> job, Run<?, ?> run, int buildNumber) {}
 
-  public List<AgentExecution> getExecutionsForNode(List<String> indexLines, String nodeName, int page, int pageSize, String sortColumn, String sortOrder, String statusFilter) {
+  public ExecutionPage getExecutionsForNode(String nodeName, int page, int pageSize, String sortColumn, String sortOrder, String statusFilter) {
+    int offset = Math.max(0, (page - 1) * pageSize);
+    return loadPage(AgentBuildHistoryStorage.get().query(nodeName, sortColumn, sortOrder, statusFilter, offset, pageSize), nodeName, pageSize, null);
+  }
+
+  /*
+   * Returns the executions that follow the cursor token in the start time order together with the cursor of the next
+   * page. An empty token returns the first page.
+   */
+  public ExecutionPage getExecutionsAfter(String nodeName, String after, int pageSize, String sortOrder, String statusFilter) {
+    AgentBuildHistoryStorage.HistoryCursor cursor = null;
+    if (!after.isEmpty()) {
+      cursor = AgentBuildHistoryStorage.HistoryCursor.parse(after);
+      if (cursor == null) {
+        LOGGER.fine("Invalid cursor " + after + " for node " + nodeName);
+        return ExecutionPage.EMPTY;
+      }
+    }
+    AgentBuildHistoryStorage.HistoryPage historyPage = AgentBuildHistoryStorage.get().queryAfter(nodeName, sortOrder, statusFilter, cursor, pageSize);
+    List<AgentBuildHistoryStorage.HistoryEntry> entries = historyPage.entries();
+    String nextCursor = null;
+    if (pageSize > 0 && entries.size() == pageSize) {
+      nextCursor = AgentBuildHistoryStorage.HistoryCursor.of(entries.get(entries.size() - 1)).toString();
+    }
+    return loadPage(historyPage, nodeName, pageSize, nextCursor);
+  }
+
+  // Returns a page of index lines as returned by readIndexFile, lines of jobs unknown to the dictionary are skipped
+  @Restricted(NoExternalUse.class)
+  ExecutionPage getExecutionsForNode(List<String> indexLines, String nodeName, int page, int pageSize, String sortColumn, String sortOrder, String statusFilter) {
     if (indexLines.isEmpty()) {
-      return List.of();
+      return ExecutionPage.EMPTY;
     }
-    // Sort index lines based on start time or build
-    indexLines.sort((a, b) -> {
-      int comparison = 0;
-      switch (sortColumn) {
-        case "startTime":
-          long timeA = Long.parseLong(a.split(BuildHistoryFileManager.separator)[2]);
-          long timeB = Long.parseLong(b.split(BuildHistoryFileManager.separator)[2]);
-          comparison = Long.compare(timeA, timeB);
-          break;
-        case "build":
-          comparison = a.split(BuildHistoryFileManager.separator)[0].compareTo(b.split(BuildHistoryFileManager.separator)[0]);
-          if (comparison == 0) {
-            // Only compare build numbers if the job names are the same
-            int buildNumberA = Integer.parseInt(a.split(BuildHistoryFileManager.separator)[1]);
-            int buildNumberB = Integer.parseInt(b.split(BuildHistoryFileManager.separator)[1]);
-            comparison = Integer.compare(buildNumberA, buildNumberB);
-          }
-          break;
-        default:
-      }
-      return sortOrder.equals("asc") ? comparison : -comparison;
-    });
+    JobNameDictionary dictionary = JobNameDictionary.get(AgentBuildHistoryConfig.get().getStorageDir());
+    NodeIndex index = NodeIndex.parse(String.join("\n", indexLines).getBytes(StandardCharsets.UTF_8), dictionary, false);
+    int offset = Math.max(0, (page - 1) * pageSize);
+    return loadPage(FlatFileHistoryStorage.query(null, index, dictionary, sortColumn, sortOrder, statusFilter, offset, pageSize, false), nodeName, pageSize, null);
+  }
 
-    List<AgentExecution> executions = new ArrayList<>();
-    List<Execution> filtered = new ArrayList<>();
+  private static ExecutionPage loadPage(AgentBuildHistoryStorage.HistoryPage historyPage, String nodeName, int pageSize, String nextCursor) {
+    int totalPages = -1;
+    if (historyPage.totalEntries() >= 0) {
+      totalPages = pageSize > 0 ? (int) Math.ceil((double) historyPage.totalEntries() / pageSize) : 0;
+      LOGGER.finer("Found " + historyPage.totalEntries() + " entries for node " + nodeName);
+    }
 
-    for (String line : indexLines) {
-      String[] parts = line.split(BuildHistoryFileManager.separator);
-      String jobName = parts[0];
-      Job<?, ?> job = Jenkins.get().getItemByFullName(jobName, Job.class);
+    // Load the rows in parallel, the page is as slow as its slowest row
+    List<Future<AgentExecution>> futures = new ArrayList<>();
+    for (AgentBuildHistoryStorage.HistoryEntry entry : historyPage.entries()) {
+      Job<?, ?> job = JobCache.get(entry.jobName());
       if (job == null) {
         continue;
       }
-      int buildNumber = Integer.parseInt(parts[1]);
-      Result result;
-      Run<?, ?> run = null;
-      if (parts.length > 3) {
-        result = Result.fromString(parts[3]);
-      } else {
-        run = job.getBuildByNumber(buildNumber);
-        if (run == null) {
-          continue;
+      futures.add(PAGE_LOADER.submit(() -> loadSingleExecution(new Execution(job, null, entry.buildNumber()))));
+    }
+    List<AgentExecution> executions = new ArrayList<>();
+    int pendingRuns = 0;
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(PAGE_LOAD_TIMEOUT);
+    for (Future<AgentExecution> future : futures) {
+      try {
+        // Loads that miss the deadline are not cancelled, interrupting them while they read build.xml or the flow
+        // graph is not safe. They complete in the background, so the runs are loaded when the page is reloaded.
+        AgentExecution execution = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        if (execution != null) {
+          executions.add(execution);
         }
-        result = run.getResult();
-      }
-      if (!Utils.includeRun(result, statusFilter)) {
-        continue;
+      } catch (TimeoutException e) {
+        pendingRuns++;
+      } catch (ExecutionException e) {
+        LOGGER.log(Level.WARNING, "Failed to load a run of node " + nodeName, e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        pendingRuns++;
+        deadline = System.nanoTime();
       }
-      filtered.add(new Execution(job, run, buildNumber));
     }
-
-    // Apply pagination
-    int start = Math.min(filtered.size(), (page - 1) * pageSize);
-    int end = Math.min(start + pageSize, filtered.size());
-
-    int totalEntries = filtered.size();
-    totalPages = (int) Math.ceil((double) totalEntries / pageSize);
-
-    List<Execution> paginated = filtered.subList(start, end);
-    // Load execution using deserialization
-    for (Execution exec : paginated) {
-      AgentExecution execution = loadSingleExecution(exec);
-      if (execution != null) {
-        executions.add(execution);
-      }
+    if (pendingRuns > 0) {
+      LOGGER.fine(pendingRuns + " runs of node " + nodeName + " were not loaded within " + PAGE_LOAD_TIMEOUT + " seconds");
     }
     LOGGER.finer("Returning " + executions.size() + " entries for node " + nodeName);
-    return executions;
+    return new ExecutionPage(executions, totalPages, nextCursor, pendingRuns);
   }
 
   private static AgentExecution loadSingleExecution(Execution exec) {
@@ -228,6 +312,11 @@ public class AgentBuildHistory implements Action {
       }
     } else if (run instanceof WorkflowRun wfr) {
       LOGGER.finer("Loading WorkflowRun: " + wfr.getFullDisplayName());
+      List<AgentSegmentCache.Segment> segments = AgentSegmentCache.get(wfr);
+      if (segments != null) {
+        segments.forEach(execution::addFlowNode);
+        return execution;
+      }
       FlowExecution flowExecution = wfr.getExecution();
       if (flowExecution != null) {
         for (FlowNode flowNode : new DepthFirstScanner().allNodes(flowExecution)) {
@@ -256,6 +345,7 @@ public class AgentBuildHistory implements Action {
             }
           }
         }
+        AgentSegmentCache.put(wfr, execution.getFlowNodes().stream().map(AgentExecution.FlowNodeExecution::toSegment).toList());
       }
     }
     return execution;
@@ -270,37 +360,11 @@ public class AgentBuildHistory implements Action {
       return;
     }
     LOGGER.log(Level.FINER, () -> "Starting to synchronize all runs");
-    RunList<Run<?, ?>> runList = RunList.fromJobs((Iterable) Jenkins.get().allItems(Job.class));
-    runList.forEach(run -> {
-      LOGGER.finer("Loading run " + run.getFullDisplayName());
-
-      if (run instanceof AbstractBuild<?, ?> build) {
-        Node node = build.getBuiltOn();
-        if (node != null) {
-          BuildHistoryFileManager.addRunToNodeIndex(node.getNodeName(), run, AgentBuildHistoryConfig.get().getStorageDir());
-        }
-      } else if (run instanceof WorkflowRun wfr) {
-        FlowExecution flowExecution = wfr.getExecution();
-        if (flowExecution != null) {
-          for (FlowNode flowNode : new DepthFirstScanner().allNodes(flowExecution)) {
-            if (!(flowNode instanceof StepStartNode startNode)) {
-              continue;
-            }
-            for (WorkspaceActionImpl action : flowNode.getActions(WorkspaceActionImpl.class)) {
-              StepDescriptor descriptor = startNode.getDescriptor();
-              if (descriptor instanceof ExecutorStep.DescriptorImpl) {
-                String nodeName = action.getNode();
-                Node node = Jenkins.get().getNode(nodeName);
-                // empty node name means it was run on built-in
-                if (nodeName.isBlank() || node != null) {
-                  BuildHistoryFileManager.addRunToNodeIndex(nodeName, run, AgentBuildHistoryConfig.get().getStorageDir());
-                }
-              }
-            }
-          }
-        }
-      }
-    });
+    if (!HistoryBackfill.run()) {
+      // allow a later request to start over
+      loaded.set(false);
+      return;
+    }
     loadingComplete = true;
     try {
       Files.createFile(marker.toPath());
@@ -311,11 +375,13 @@ public class AgentBuildHistory implements Action {
   }
 
   public static void startJobExecution(Computer c, Run<?, ?> run) {
-    BuildHistoryFileManager.addRunToNodeIndex(c.getName(), run, AgentBuildHistoryConfig.get().getStorageDir());
+    RunningBuilds.add(c.getName(), run);
+    IndexWriteQueue.add(c.getName(), run);
   }
 
   public static void startFlowNodeExecution(Computer c, WorkflowRun run, FlowNode node) {
-    BuildHistoryFileManager.addRunToNodeIndex(c.getName(), run, AgentBuildHistoryConfig.get().getStorageDir());
+    RunningBuilds.add(c.getName(), run);
+    IndexWriteQueue.add(c.getName(), run);
   }
 
   @Override
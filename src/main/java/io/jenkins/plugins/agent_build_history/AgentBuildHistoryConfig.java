@@ -12,8 +12,22 @@ import java.util.logging.Logger;
 @Extension
 public class AgentBuildHistoryConfig extends GlobalConfiguration {
   private static final Logger LOGGER = Logger.getLogger(AgentBuildHistoryConfig.class.getName());
+  static final int DEFAULT_CACHE_MAX_NODES = 500;
+  static final int DEFAULT_CACHE_MAX_MEMORY = 128;
+  static final int DEFAULT_BACKFILL_RUNS_PER_SECOND = 100;
+  static final int DEFAULT_BACKFILL_GRAPH_LOADS = 2;
 
   private String storageDir = getDefaultStorageDir();
+  private boolean journalEnabled = true;
+  private boolean binaryIndexEnabled = false;
+  private int cacheMaxNodes = DEFAULT_CACHE_MAX_NODES;
+  private int cacheMaxMemory = DEFAULT_CACHE_MAX_MEMORY;
+  private int retentionDays = 0;
+  private boolean segmentFileEnabled = true;
+  private int backfillThreads = getDefaultBackfillThreads();
+  private int backfillRunsPerSecond = DEFAULT_BACKFILL_RUNS_PER_SECOND;
+  private int backfillGraphLoads = DEFAULT_BACKFILL_GRAPH_LOADS;
+  private boolean backfillPaused = false;
 
   public AgentBuildHistoryConfig() {
     load(); // Load the persisted configuration
@@ -52,11 +66,124 @@ public class AgentBuildHistoryConfig extends GlobalConfiguration {
       LOGGER.info("Changing storage directory from " + this.storageDir + " to " + storageDir);
       this.storageDir = storageDir;
       ensureStorageDir();
+      BuildHistoryFileManager.recoverCompactions(storageDir);
+      NodeIndexCache.clear();
       AgentBuildHistory.setLoaded(false);
       save(); // Save the configuration
     }
   }
 
+  public boolean isJournalEnabled() {
+    return journalEnabled;
+  }
+
+  @DataBoundSetter
+  public void setJournalEnabled(boolean journalEnabled) {
+    this.journalEnabled = journalEnabled;
+    save();
+  }
+
+  public boolean isBinaryIndexEnabled() {
+    return binaryIndexEnabled;
+  }
+
+  @DataBoundSetter
+  public void setBinaryIndexEnabled(boolean binaryIndexEnabled) {
+    this.binaryIndexEnabled = binaryIndexEnabled;
+    save();
+  }
+
+  public int getCacheMaxNodes() {
+    return cacheMaxNodes;
+  }
+
+  @DataBoundSetter
+  public void setCacheMaxNodes(int cacheMaxNodes) {
+    this.cacheMaxNodes = Math.max(cacheMaxNodes, 0);
+    NodeIndexCache.updated();
+    save();
+  }
+
+  // Maximum memory in MB used by the cached agent histories
+  public int getCacheMaxMemory() {
+    return cacheMaxMemory;
+  }
+
+  @DataBoundSetter
+  public void setCacheMaxMemory(int cacheMaxMemory) {
+    this.cacheMaxMemory = Math.max(cacheMaxMemory, 0);
+    NodeIndexCache.updated();
+    save();
+  }
+
+  // Number of days the history is kept, 0 keeps it forever
+  public int getRetentionDays() {
+    return retentionDays;
+  }
+
+  @DataBoundSetter
+  public void setRetentionDays(int retentionDays) {
+    this.retentionDays = Math.max(retentionDays, 0);
+    save();
+  }
+
+  public boolean isSegmentFileEnabled() {
+    return segmentFileEnabled;
+  }
+
+  @DataBoundSetter
+  public void setSegmentFileEnabled(boolean segmentFileEnabled) {
+    this.segmentFileEnabled = segmentFileEnabled;
+    save();
+  }
+
+  private static int getDefaultBackfillThreads() {
+    return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+  }
+
+  // Number of jobs whose existing runs are synchronized in parallel
+  public int getBackfillThreads() {
+    return backfillThreads;
+  }
+
+  @DataBoundSetter
+  public void setBackfillThreads(int backfillThreads) {
+    this.backfillThreads = backfillThreads > 0 ? backfillThreads : getDefaultBackfillThreads();
+    save();
+  }
+
+  // Maximum number of existing runs synchronized per second, 0 is unlimited
+  public int getBackfillRunsPerSecond() {
+    return backfillRunsPerSecond;
+  }
+
+  @DataBoundSetter
+  public void setBackfillRunsPerSecond(int backfillRunsPerSecond) {
+    this.backfillRunsPerSecond = Math.max(backfillRunsPerSecond, 0);
+    save();
+  }
+
+  // Maximum number of flow graphs loaded in parallel by the synchronization
+  public int getBackfillGraphLoads() {
+    return backfillGraphLoads;
+  }
+
+  @DataBoundSetter
+  public void setBackfillGraphLoads(int backfillGraphLoads) {
+    this.backfillGraphLoads = backfillGraphLoads > 0 ? backfillGraphLoads : DEFAULT_BACKFILL_GRAPH_LOADS;
+    save();
+  }
+
+  public boolean isBackfillPaused() {
+    return backfillPaused;
+  }
+
+  @DataBoundSetter
+  public void setBackfillPaused(boolean backfillPaused) {
+    this.backfillPaused = backfillPaused;
+    save();
+  }
+
   // Static method to access the configuration instance
   public static AgentBuildHistoryConfig get() {
     return GlobalConfiguration.all().get(AgentBuildHistoryConfig.class);
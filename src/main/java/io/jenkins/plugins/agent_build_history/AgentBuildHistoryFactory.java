@@ -10,15 +10,15 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Extension
 @Restricted(NoExternalUse.class)
 public class AgentBuildHistoryFactory extends TransientActionFactory<Computer> {
 
-  private final Map<String, AgentBuildHistory> cache = new HashMap<>();
+  private final Map<String, AgentBuildHistory> cache = new ConcurrentHashMap<>();
 
   @Override
   public Class<Computer> type() {
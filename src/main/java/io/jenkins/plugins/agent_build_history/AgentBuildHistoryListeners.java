@@ -27,21 +27,27 @@ public class AgentBuildHistoryListeners {
 
     @Override
     public void onDeleted(Run run) {
+      RunningBuilds.remove(run);
+      AgentSegmentCache.remove(run);
+      IndexWriteQueue.flush();
       String jobName = run.getParent().getFullName();
       int buildNumber = run.getNumber();
-      Set<String> nodeNames = BuildHistoryFileManager.getAllSavedNodeNames(AgentBuildHistoryConfig.get().getStorageDir());
+      AgentBuildHistoryStorage storage = AgentBuildHistoryStorage.get();
+      Set<String> nodeNames = storage.getNodeNamesForRun(run);
       for (String nodeName : nodeNames) {
-        BuildHistoryFileManager.deleteExecution(nodeName, jobName, buildNumber, AgentBuildHistoryConfig.get().getStorageDir());
+        storage.deleteRun(nodeName, jobName, buildNumber);
       }
     }
 
     @Override
     public void onFinalized(Run<?, ?> run) {
-      Set<String> nodeNames = BuildHistoryFileManager.getAllSavedNodeNames(AgentBuildHistoryConfig.get().getStorageDir());
+      IndexWriteQueue.flush();
+      AgentBuildHistoryStorage storage = AgentBuildHistoryStorage.get();
+      Set<String> nodeNames = storage.getNodeNames();
       if (run instanceof AbstractBuild<?, ?> ab) {
         String nodeName = ab.getBuiltOnStr();
         if (nodeNames.contains(nodeName)) {
-          BuildHistoryFileManager.updateResult(nodeName, run, AgentBuildHistoryConfig.get().getStorageDir());
+          storage.updateResult(nodeName, run);
         }
       } else {
         HistoryAction action = run.getAction(HistoryAction.class);
@@ -49,9 +55,11 @@ public class AgentBuildHistoryListeners {
           nodeNames = action.getAgents();
         }
         for (String nodeName : nodeNames) {
-          BuildHistoryFileManager.updateResult(nodeName, run, AgentBuildHistoryConfig.get().getStorageDir());
+          storage.updateResult(nodeName, run);
         }
       }
+      // only once the result is recorded, so queries never see the run without result as not running
+      RunningBuilds.remove(run);
     }
 
     @Override
@@ -65,19 +73,42 @@ public class AgentBuildHistoryListeners {
   @Extension
   public static class HistoryItemListener extends ItemListener {
 
+    @Override
+    public void onCreated(Item item) {
+      // the name might be cached as missing
+      JobCache.invalidate(item.getFullName());
+    }
+
+    @Override
+    public void onCopied(Item src, Item item) {
+      JobCache.invalidate(item.getFullName());
+    }
+
+    @Override
+    public void onLoaded() {
+      JobCache.clear();
+    }
+
     @Override
     public void onDeleted(Item item) {
+      JobCache.invalidate(item.getFullName());
       if (item instanceof Job<?, ?>) {
+        IndexWriteQueue.flush();
         String jobName = item.getFullName();
-        BuildHistoryFileManager.deleteJobSerialization(jobName, AgentBuildHistoryConfig.get().getStorageDir());
+        AgentSegmentCache.removeJob(jobName);
+        AgentBuildHistoryStorage.get().deleteJob(jobName);
       }
     }
 
     @Override
     public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+      JobCache.invalidate(oldFullName);
+      JobCache.invalidate(newFullName);
       if (item instanceof Job) {
         LOGGER.finer("Job renamed from " + oldFullName + " to " + newFullName);
-        BuildHistoryFileManager.renameJob(oldFullName, newFullName, AgentBuildHistoryConfig.get().getStorageDir());
+        IndexWriteQueue.flush();
+        AgentSegmentCache.removeJob(oldFullName);
+        AgentBuildHistoryStorage.get().renameJob(oldFullName, newFullName);
       }
     }
   }
@@ -88,7 +119,8 @@ public class AgentBuildHistoryListeners {
     @Override
     protected void onDeleted(@NonNull Node node) {
       String nodeName = node.getNodeName();
-      BuildHistoryFileManager.deleteNodeSerializations(nodeName, AgentBuildHistoryConfig.get().getStorageDir());
+      IndexWriteQueue.flush();
+      AgentBuildHistoryStorage.get().deleteNode(nodeName);
     }
 
     @Override
@@ -97,7 +129,8 @@ public class AgentBuildHistoryListeners {
       String newNodeName = newOne.getNodeName();
 
       if (!oldNodeName.equals(newNodeName)) {
-        BuildHistoryFileManager.renameNodeFiles(oldNodeName, newNodeName, AgentBuildHistoryConfig.get().getStorageDir());
+        IndexWriteQueue.flush();
+        AgentBuildHistoryStorage.get().renameNode(oldNodeName, newNodeName);
       }
     }
   }
@@ -0,0 +1,119 @@
+package io.jenkins.plugins.agent_build_history;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.Result;
+import hudson.model.Run;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.Beta;
+
+/**
+ * Storage of the build history of the agents.
+ *
+ * <p>The implementation with the highest ordinal is used, {@link FlatFileHistoryStorage} is the default.
+ * Implementations take their location from {@link AgentBuildHistoryConfig} and are called from multiple threads.
+ */
+@Restricted(Beta.class)
+public abstract class AgentBuildHistoryStorage implements ExtensionPoint {
+
+  /**
+   * A run in the history of a node. The result is {@code null} while the run is not finished.
+   */
+  public record HistoryEntry(String jobName, int buildNumber, long startTime, Result result) {}
+
+  /**
+   * A page of the history of a node together with the number of entries matching the query, or {@code -1} when
+   * the query didn't count them.
+   */
+  public record HistoryPage(List<HistoryEntry> entries, int totalEntries) {}
+
+  /**
+   * Position in the history of a node ordered by start time, in the format {@code startTime,job,number}.
+   */
+  public record HistoryCursor(long startTime, String jobName, int buildNumber) {
+
+    public static HistoryCursor of(HistoryEntry entry) {
+      return new HistoryCursor(entry.startTime(), entry.jobName(), entry.buildNumber());
+    }
+
+    // Returns the cursor or null when the token is not valid, job names may contain commas
+    public static HistoryCursor parse(String token) {
+      int first = token.indexOf(',');
+      int last = token.lastIndexOf(',');
+      if (first < 0 || last <= first) {
+        return null;
+      }
+      try {
+        return new HistoryCursor(Long.parseLong(token.substring(0, first)), token.substring(first + 1, last), Integer.parseInt(token.substring(last + 1)));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return startTime + "," + jobName + "," + buildNumber;
+    }
+  }
+
+  // Adds the runs that are not part of the history of the node yet
+  public abstract void addRuns(String nodeName, List<Run<?, ?>> runs);
+
+  public abstract void updateResult(String nodeName, Run<?, ?> run);
+
+  public abstract void deleteRun(String nodeName, String jobName, int buildNumber);
+
+  public abstract void deleteJob(String jobName);
+
+  public abstract void deleteNode(String nodeName);
+
+  public abstract void renameNode(String oldNodeName, String newNodeName);
+
+  public abstract void renameJob(String oldFullName, String newFullName);
+
+  // Returns the names of all nodes that have a history
+  public abstract Set<String> getNodeNames();
+
+  // Returns the nodes that might have the run in their history
+  public abstract Set<String> getNodeNamesForRun(Run<?, ?> run);
+
+  /**
+   * Returns a page of the history of a node.
+   *
+   * @param sortColumn either {@code startTime} or {@code build}
+   * @param sortOrder either {@code asc} or {@code desc}
+   * @param statusFilter {@code all} or the name of a result, runs without result match while they are running
+   * @param offset index of the first entry of the page
+   * @param limit maximum number of entries of the page
+   */
+  public abstract HistoryPage query(String nodeName, String sortColumn, String sortOrder, String statusFilter, int offset, int limit);
+
+  /**
+   * Returns the entries of a node ordered by start time that follow the cursor. Entries that are added or removed
+   * while paging don't shift the following pages. The entries matching the query are not counted.
+   *
+   * @param sortOrder either {@code asc} or {@code desc}
+   * @param after the last entry of the previous page or {@code null} for the first page
+   */
+  public abstract HistoryPage queryAfter(String nodeName, String sortOrder, String statusFilter, HistoryCursor after, int limit);
+
+  /**
+   * Returns the number of runs in the history of a node for each value of the status filter. Implementations that
+   * maintain counters should override this, by default each status is queried.
+   */
+  public Map<String, Integer> getStatusCounts(String nodeName) {
+    Map<String, Integer> counts = new LinkedHashMap<>();
+    for (String statusFilter : Utils.STATUS_FILTERS) {
+      counts.put(statusFilter, query(nodeName, "startTime", "desc", statusFilter, 0, 0).totalEntries());
+    }
+    return counts;
+  }
+
+  public static AgentBuildHistoryStorage get() {
+    return ExtensionList.lookupFirst(AgentBuildHistoryStorage.class);
+  }
+}
@@ -43,6 +43,11 @@ public class AgentExecution implements Comparable<AgentExecution> {
     flowNodes.add(exec);
   }
 
+  // Adds a segment that was cached before, the flow graph is only read if the details are not known
+  public void addFlowNode(AgentSegmentCache.Segment segment) {
+    flowNodes.add(new FlowNodeExecution(segment.flowNodeId(), segment.nodeName(), segment.startTime(), segment.endTime(), segment.status()));
+  }
+
   public Set<FlowNodeExecution> getFlowNodes() {
     return Collections.unmodifiableSet(flowNodes);
   }
@@ -87,10 +92,12 @@ public class AgentExecution implements Comparable<AgentExecution> {
   @ExportedBean(defaultVisibility = 4)
   public class FlowNodeExecution implements Comparable<FlowNodeExecution> {
     private final String nodeId;
-    private Status status;
+    private volatile Status status;
 
     private String nodeName;
     private final long startTime;
+    // 0 while not known
+    private volatile long endTime;
 
     public FlowNodeExecution(String nodeId, String nodeName) {
       this.nodeId = nodeId;
@@ -98,6 +105,25 @@ public class AgentExecution implements Comparable<AgentExecution> {
       startTime = AgentExecution.getNodeTime(getStartNode());
     }
 
+    FlowNodeExecution(String nodeId, String nodeName, long startTime, long endTime, Status status) {
+      this.nodeId = nodeId;
+      this.nodeName = nodeName;
+      this.startTime = startTime;
+      this.endTime = endTime;
+      this.status = status;
+    }
+
+    AgentSegmentCache.Segment toSegment() {
+      return new AgentSegmentCache.Segment(nodeId, nodeName, startTime, getEndTime(), getFlowNodeStatus());
+    }
+
+    private long getEndTime() {
+      if (endTime == 0) {
+        endTime = getNodeTime(getEndNode());
+      }
+      return endTime;
+    }
+
     @CheckForNull
     private FlowNode getStartNode() {
       Run<?, ?> run = AgentExecution.this.getRun();
@@ -129,7 +155,7 @@ public class AgentExecution implements Comparable<AgentExecution> {
     }
 
     public String getDurationString() {
-      long endTime = getNodeTime(getEndNode());
+      long endTime = getEndTime();
       if (endTime == 0) {
         return Messages.InProgressDuration(Util.getTimeSpanString(System.currentTimeMillis() - this.startTime));
       } else {
@@ -139,7 +165,7 @@ public class AgentExecution implements Comparable<AgentExecution> {
 
     @Exported
     public long getDuration() {
-      long endTime = getNodeTime(getEndNode());
+      long endTime = getEndTime();
       if (endTime == 0) {
         return Math.max(System.currentTimeMillis() - startTime, 0L);
       } else {
@@ -180,8 +206,7 @@ public class AgentExecution implements Comparable<AgentExecution> {
 
     @Exported(name = "status")
     public Status getFlowNodeStatus() {
-      long endTime = getNodeTime(getEndNode());
-      if (endTime == 0) {
+      if (getEndTime() == 0) {
         return Status.RUNNING;
       }
       if (status == null) {
@@ -0,0 +1,146 @@
+package io.jenkins.plugins.agent_build_history;
+
+import hudson.model.Run;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Bounded LRU cache of the agent segments of completed pipeline runs, i.e. the {@code node} blocks with the agent
+ * they ran on, their start and end time and status.
+ *
+ * <p>Finding the segments requires a scan of the whole flow graph, but they never change once the run completed.
+ * When enabled in {@link AgentBuildHistoryConfig} the segments are also stored in the build directory, so they
+ * survive eviction and restarts and are deleted together with the run.
+ */
+@Restricted(NoExternalUse.class)
+public class AgentSegmentCache {
+
+  private static final Logger LOGGER = Logger.getLogger(AgentSegmentCache.class.getName());
+  static final String FILE_NAME = "agent-segments.txt";
+  // Limits the heap usage, a segment takes roughly 100 bytes
+  static final int MAX_SEGMENTS = 100000;
+  private static final Map<String, List<Segment>> cache = new LinkedHashMap<>(16, 0.75f, true);
+  private static int size;
+
+  public record Segment(String flowNodeId, String nodeName, long startTime, long endTime, AgentExecution.Status status) {}
+
+  private AgentSegmentCache() {
+  }
+
+  // Returns the segments of the run or null if they are not known
+  static List<Segment> get(Run<?, ?> run) {
+    String key = run.getExternalizableId();
+    synchronized (AgentSegmentCache.class) {
+      List<Segment> segments = cache.get(key);
+      if (segments != null) {
+        return segments;
+      }
+    }
+    List<Segment> segments = read(new File(run.getRootDir(), FILE_NAME));
+    if (segments != null) {
+      cache(key, segments);
+    }
+    return segments;
+  }
+
+  // Only segments of completed runs are cached
+  static void put(Run<?, ?> run, List<Segment> segments) {
+    if (run.isBuilding()) {
+      return;
+    }
+    for (Segment segment : segments) {
+      if (segment.endTime == 0 || segment.status == AgentExecution.Status.RUNNING) {
+        return;
+      }
+    }
+    cache(run.getExternalizableId(), List.copyOf(segments));
+    if (isFileEnabled()) {
+      write(new File(run.getRootDir(), FILE_NAME), segments);
+    }
+  }
+
+  static synchronized void remove(Run<?, ?> run) {
+    List<Segment> removed = cache.remove(run.getExternalizableId());
+    if (removed != null) {
+      size -= removed.size();
+    }
+  }
+
+  // Removes the runs of the job, e.g. as a new job with the same name would reuse the build numbers
+  static synchronized void removeJob(String jobName) {
+    Iterator<Map.Entry<String, List<Segment>>> iterator = cache.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, List<Segment>> entry = iterator.next();
+      if (entry.getKey().startsWith(jobName + "#")) {
+        size -= entry.getValue().size();
+        iterator.remove();
+      }
+    }
+  }
+
+  static synchronized void clear() {
+    cache.clear();
+    size = 0;
+  }
+
+  private static synchronized void cache(String key, List<Segment> segments) {
+    List<Segment> previous = cache.put(key, segments);
+    size += segments.size() - (previous != null ? previous.size() : 0);
+    Iterator<List<Segment>> iterator = cache.values().iterator();
+    while (iterator.hasNext() && size > MAX_SEGMENTS) {
+      size -= iterator.next().size();
+      iterator.remove();
+    }
+  }
+
+  private static boolean isFileEnabled() {
+    AgentBuildHistoryConfig config = AgentBuildHistoryConfig.get();
+    return config == null || config.isSegmentFileEnabled();
+  }
+
+  // Lines are flowNodeId;startTime;endTime;status;nodeName
+  private static List<Segment> read(File file) {
+    if (!isFileEnabled() || !file.exists()) {
+      return null;
+    }
+    try {
+      List<Segment> segments = new ArrayList<>();
+      for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+        String[] parts = line.split(BuildHistoryFileManager.separator, 5);
+        if (parts.length < 5) {
+          continue;
+        }
+        segments.add(new Segment(parts[0], parts[4], Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+            AgentExecution.Status.valueOf(parts[3])));
+      }
+      return segments;
+    } catch (IOException | IllegalArgumentException e) {
+      LOGGER.log(Level.WARNING, "Failed to read agent segments from " + file, e);
+      return null;
+    }
+  }
+
+  private static void write(File file, List<Segment> segments) {
+    List<String> lines = new ArrayList<>();
+    for (Segment segment : segments) {
+      lines.add(String.join(BuildHistoryFileManager.separator, segment.flowNodeId, String.valueOf(segment.startTime),
+          String.valueOf(segment.endTime), segment.status.name(), segment.nodeName));
+    }
+    try {
+      Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to write agent segments to " + file, e);
+    }
+  }
+}
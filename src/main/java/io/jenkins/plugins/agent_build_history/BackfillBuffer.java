@@ -0,0 +1,292 @@
+package io.jenkins.plugins.agent_build_history;
+
+import hudson.model.Run;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Collects the entries found by the synchronization of existing runs per node, so each node index is written once
+ * instead of once per run.
+ *
+ * <p>When more than {@link #MAX_BUFFERED} entries are buffered, the entries of each node are sorted by start time and
+ * spilled to a file in the {@code backfill} directory of the storage directory. {@link #flush()} streams a merge of
+ * the sorted spill files and the buffered entries of each node into {@link BuildHistoryFileManager#importEntries} in
+ * chunks of {@link #IMPORT_CHUNK} entries, which skips duplicates, so only one entry per spill file is held in memory
+ * besides the chunk. Spill files left by a synchronization that failed or was stopped are picked up by the next buffer.
+ */
+@Restricted(NoExternalUse.class)
+public class BackfillBuffer {
+
+  private static final Logger LOGGER = Logger.getLogger(BackfillBuffer.class.getName());
+  static final int MAX_BUFFERED = 200000;
+  static final int IMPORT_CHUNK = 50000;
+  private static final String SPILL_SUFFIX = ".bin";
+
+  private final String storageDir;
+  private final int maxBuffered;
+  private final JobNameDictionary dictionary;
+  private final Map<String, NodeIndex> buffers = new HashMap<>();
+  private final Map<String, List<File>> spills = new HashMap<>();
+  private int buffered;
+  private int spillCount;
+
+  public BackfillBuffer(String storageDir) {
+    this(storageDir, MAX_BUFFERED);
+  }
+
+  BackfillBuffer(String storageDir, int maxBuffered) {
+    this.storageDir = storageDir;
+    this.maxBuffered = maxBuffered;
+    this.dictionary = JobNameDictionary.get(storageDir);
+    loadSpills();
+  }
+
+  private File getSpillDir() {
+    return new File(storageDir, "backfill");
+  }
+
+  // Adds the spill files of an earlier synchronization, they are imported by the next flush
+  private void loadSpills() {
+    File[] files = getSpillDir().listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      String name = file.getName();
+      int separator = name.lastIndexOf('_');
+      if (name.endsWith(SPILL_SUFFIX) && separator >= 0) {
+        spills.computeIfAbsent(name.substring(0, separator), k -> new ArrayList<>()).add(file);
+        try {
+          spillCount = Math.max(spillCount,
+              Integer.parseInt(name.substring(separator + 1, name.length() - SPILL_SUFFIX.length())) + 1);
+        } catch (NumberFormatException e) {
+          LOGGER.log(Level.FINE, "Unexpected spill file name " + name, e);
+        }
+      } else {
+        // a spill that was not completed
+        file.delete();
+      }
+    }
+  }
+
+  public synchronized void add(String nodeName, List<Run<?, ?>> runs) throws IOException {
+    NodeIndex buffer = buffers.computeIfAbsent(nodeName, k -> new NodeIndex());
+    for (Run<?, ?> run : runs) {
+      if (run instanceof WorkflowRun) {
+        HistoryAction action = run.getAction(HistoryAction.class);
+        if (action != null) {
+          action.addAgent(nodeName);
+        }
+      }
+      byte result = NodeIndex.toCode(run.isLogUpdated() ? null : run.getResult());
+      buffer.add(dictionary.getId(run.getParent().getFullName()), run.getNumber(), run.getStartTimeInMillis(), result, -1);
+    }
+    buffered += runs.size();
+    if (buffered > maxBuffered) {
+      spill();
+    }
+  }
+
+  // Writes the buffered entries of each node sorted by start time to a new spill file
+  private void spill() throws IOException {
+    File spillDir = getSpillDir();
+    if (!spillDir.isDirectory() && !spillDir.mkdirs()) {
+      throw new IOException("Failed to create " + spillDir);
+    }
+    for (Map.Entry<String, NodeIndex> entry : buffers.entrySet()) {
+      NodeIndex buffer = entry.getValue();
+      if (buffer.size() == 0) {
+        continue;
+      }
+      String name = entry.getKey() + "_" + spillCount++;
+      File tmp = new File(spillDir, name + ".tmp");
+      File file = new File(spillDir, name + SPILL_SUFFIX);
+      int[] order = buffer.getOrder("startTime", dictionary);
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+        for (int k = 0; k < buffer.size(); k++) {
+          int i = order[k];
+          out.writeInt(buffer.getJobId(i));
+          out.writeInt(buffer.getNumber(i));
+          out.writeLong(buffer.getStartTime(i));
+          out.writeByte(buffer.getResultCode(i));
+        }
+      } catch (IOException e) {
+        Files.deleteIfExists(tmp.toPath());
+        throw e;
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      spills.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(file);
+      entry.setValue(new NodeIndex());
+    }
+    buffered = 0;
+  }
+
+  /**
+   * Imports the collected entries into the node indexes in start time order. When it fails, the spill files of the
+   * nodes that were not imported are kept, so a later synchronization imports them.
+   */
+  public synchronized void flush() throws IOException {
+    Set<String> nodeNames = new LinkedHashSet<>(spills.keySet());
+    nodeNames.addAll(buffers.keySet());
+    for (String nodeName : nodeNames) {
+      List<Cursor> cursors = new ArrayList<>();
+      try {
+        for (File file : spills.getOrDefault(nodeName, List.of())) {
+          cursors.add(new SpillCursor(file));
+        }
+        NodeIndex buffer = buffers.get(nodeName);
+        if (buffer != null) {
+          cursors.add(new BufferCursor(buffer, buffer.getOrder("startTime", dictionary)));
+        }
+        merge(nodeName, cursors);
+      } finally {
+        for (Cursor cursor : cursors) {
+          cursor.close();
+        }
+      }
+      NodeIndex buffer = buffers.remove(nodeName);
+      if (buffer != null) {
+        buffered -= buffer.size();
+      }
+      deleteSpills(spills.remove(nodeName));
+    }
+  }
+
+  // Merges the sorted cursors by start time and imports the entries chunk by chunk
+  private void merge(String nodeName, List<Cursor> cursors) throws IOException {
+    PriorityQueue<Cursor> queue = new PriorityQueue<>(Comparator.comparingLong((Cursor cursor) -> cursor.startTime));
+    for (Cursor cursor : cursors) {
+      if (cursor.advance()) {
+        queue.add(cursor);
+      }
+    }
+    NodeIndex chunk = new NodeIndex(IMPORT_CHUNK);
+    while (!queue.isEmpty()) {
+      Cursor cursor = queue.poll();
+      chunk.add(cursor.jobId, cursor.number, cursor.startTime, cursor.result, -1);
+      if (cursor.advance()) {
+        queue.add(cursor);
+      }
+      if (chunk.size() == IMPORT_CHUNK) {
+        BuildHistoryFileManager.importEntries(nodeName, chunk, storageDir);
+        chunk = new NodeIndex(IMPORT_CHUNK);
+      }
+    }
+    if (chunk.size() > 0) {
+      BuildHistoryFileManager.importEntries(nodeName, chunk, storageDir);
+    }
+  }
+
+  // Drops all collected entries
+  public synchronized void discard() {
+    for (List<File> files : spills.values()) {
+      deleteSpills(files);
+    }
+    spills.clear();
+    buffers.clear();
+    buffered = 0;
+  }
+
+  private static void deleteSpills(List<File> files) {
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      try {
+        Files.deleteIfExists(file.toPath());
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to delete " + file, e);
+      }
+    }
+  }
+
+  // The current entry of a source sorted by start time
+  private abstract static class Cursor {
+    int jobId;
+    int number;
+    long startTime;
+    byte result;
+
+    // Moves to the next entry, returns false at the end
+    abstract boolean advance() throws IOException;
+
+    void close() {
+    }
+  }
+
+  private static class BufferCursor extends Cursor {
+    private final NodeIndex buffer;
+    private final int[] order;
+    private int k;
+
+    BufferCursor(NodeIndex buffer, int[] order) {
+      this.buffer = buffer;
+      this.order = order;
+    }
+
+    @Override
+    boolean advance() {
+      if (k == buffer.size()) {
+        return false;
+      }
+      int i = order[k++];
+      jobId = buffer.getJobId(i);
+      number = buffer.getNumber(i);
+      startTime = buffer.getStartTime(i);
+      result = buffer.getResultCode(i);
+      return true;
+    }
+  }
+
+  private static class SpillCursor extends Cursor {
+    private final DataInputStream in;
+
+    SpillCursor(File file) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())));
+    }
+
+    @Override
+    boolean advance() throws IOException {
+      try {
+        jobId = in.readInt();
+      } catch (EOFException e) {
+        return false;
+      }
+      number = in.readInt();
+      startTime = in.readLong();
+      result = in.readByte();
+      return true;
+    }
+
+    @Override
+    void close() {
+      try {
+        in.close();
+      } catch (IOException e) {
+        LOGGER.log(Level.FINE, "Failed to close spill file", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package io.jenkins.plugins.agent_build_history;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Progress of the synchronization of existing runs, stored in {@code backfill.checkpoint} in the storage directory.
+ *
+ * <p>For each job the highest build number whose runs were written to the node indexes is kept, one
+ * {@code number;jobName} line per job. A synchronization that was interrupted, e.g. by a restart, only processes the
+ * newer runs of these jobs.
+ */
+@Restricted(NoExternalUse.class)
+public class BackfillCheckpoint {
+
+  private static final Logger LOGGER = Logger.getLogger(BackfillCheckpoint.class.getName());
+  static final String FILE_NAME = "backfill.checkpoint";
+
+  private final File file;
+  private final Map<String, Integer> lastNumbers = new HashMap<>();
+
+  private BackfillCheckpoint(File file) {
+    this.file = file;
+  }
+
+  static BackfillCheckpoint load(String storageDir) {
+    BackfillCheckpoint checkpoint = new BackfillCheckpoint(new File(storageDir, FILE_NAME));
+    if (checkpoint.file.exists()) {
+      try {
+        for (String line : Files.readAllLines(checkpoint.file.toPath(), StandardCharsets.UTF_8)) {
+          int separator = line.indexOf(';');
+          if (separator > 0) {
+            checkpoint.lastNumbers.put(line.substring(separator + 1), Integer.parseInt(line.substring(0, separator)));
+          }
+        }
+      } catch (IOException | NumberFormatException e) {
+        LOGGER.log(Level.WARNING, "Failed to read " + checkpoint.file + ", synchronizing all runs again", e);
+        checkpoint.lastNumbers.clear();
+      }
+    }
+    return checkpoint;
+  }
+
+  // Returns the highest synchronized build number of the job or 0
+  synchronized int getLastNumber(String jobName) {
+    return lastNumbers.getOrDefault(jobName, 0);
+  }
+
+  synchronized void putAll(Map<String, Integer> numbers) {
+    lastNumbers.putAll(numbers);
+  }
+
+  synchronized void save() {
+    List<String> lines = new ArrayList<>(lastNumbers.size());
+    for (Map.Entry<String, Integer> entry : lastNumbers.entrySet()) {
+      lines.add(entry.getValue() + ";" + entry.getKey());
+    }
+    File tmpFile = new File(file.getPath() + ".tmp");
+    try {
+      Files.createDirectories(file.getParentFile().toPath());
+      Files.write(tmpFile.toPath(), lines, StandardCharsets.UTF_8);
+      Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to write " + file, e);
+    }
+  }
+
+  void delete() {
+    try {
+      Files.deleteIfExists(file.toPath());
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to delete " + file, e);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package io.jenkins.plugins.agent_build_history;
+
+import hudson.model.Computer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Limits the load the synchronization of existing runs puts on the controller.
+ *
+ * <p>Runs wait while the synchronization is paused and are paced to the configured number of runs per second. Every
+ * {@link #BATCH_SIZE} runs the load of the controller is checked, while it is busy all workers back off for
+ * {@link #BACKOFF}, at most {@link #MAX_TOTAL_BACKOFF} per synchronization so it always finishes. Loading flow graphs
+ * is limited separately as it is the most expensive part. The rate and pause settings are read from
+ * {@link AgentBuildHistoryConfig} on every run, so changes apply to a running synchronization, the number of flow
+ * graph loads is fixed when it starts.
+ */
+@Restricted(NoExternalUse.class)
+public class BackfillThrottle {
+
+  private static final Logger LOGGER = Logger.getLogger(BackfillThrottle.class.getName());
+  static final long POLL_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+  static final int BATCH_SIZE = 100;
+  static final long BACKOFF = TimeUnit.SECONDS.toMillis(10);
+  static final long MAX_TOTAL_BACKOFF = TimeUnit.MINUTES.toMillis(30);
+  static final double BUSY_EXECUTOR_RATIO = 0.9;
+
+  private final Semaphore graphLoads;
+  private final AtomicLong runs = new AtomicLong();
+  private volatile long resumeAt;
+  // guarded by this
+  private long nextPermit;
+  private long totalBackoff;
+
+  BackfillThrottle(int maxGraphLoads) {
+    this.graphLoads = new Semaphore(Math.max(1, maxGraphLoads));
+  }
+
+  // Blocks until the next run may be synchronized
+  void acquireRun() throws InterruptedException {
+    AgentBuildHistoryConfig config = AgentBuildHistoryConfig.get();
+    while (config.isBackfillPaused()) {
+      Thread.sleep(POLL_INTERVAL);
+    }
+    if (runs.getAndIncrement() % BATCH_SIZE == 0) {
+      checkBackoff();
+    }
+    long backoff = resumeAt - System.currentTimeMillis();
+    if (backoff > 0) {
+      Thread.sleep(backoff);
+    }
+    int runsPerSecond = config.getBackfillRunsPerSecond();
+    if (runsPerSecond <= 0) {
+      return;
+    }
+    long wait;
+    synchronized (this) {
+      long now = System.nanoTime();
+      nextPermit = Math.max(nextPermit, now);
+      wait = nextPermit - now;
+      nextPermit += TimeUnit.SECONDS.toNanos(1) / runsPerSecond;
+    }
+    if (wait > 0) {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+
+  void acquireGraphLoad() throws InterruptedException {
+    graphLoads.acquire();
+  }
+
+  void releaseGraphLoad() {
+    graphLoads.release();
+  }
+
+  private synchronized void checkBackoff() {
+    if (totalBackoff >= MAX_TOTAL_BACKOFF || !isControllerBusy()) {
+      return;
+    }
+    long backoff = Math.min(BACKOFF, MAX_TOTAL_BACKOFF - totalBackoff);
+    totalBackoff += backoff;
+    resumeAt = System.currentTimeMillis() + backoff;
+    LOGGER.log(Level.FINE, () -> "Controller is busy, pausing the synchronization for " + backoff + "ms");
+  }
+
+  // Busy when the queue holds more buildable items than there are executors or nearly all executors are in use
+  static boolean isControllerBusy() {
+    Jenkins jenkins = Jenkins.get();
+    int executors = 0;
+    int busyExecutors = 0;
+    for (Computer computer : jenkins.getComputers()) {
+      if (computer.isOnline()) {
+        executors += computer.countExecutors();
+        busyExecutors += computer.countBusy();
+      }
+    }
+    if (executors == 0) {
+      return false;
+    }
+    return jenkins.getQueue().countBuildableItems() > executors || busyExecutors >= executors * BUSY_EXECUTOR_RATIO;
+  }
+}
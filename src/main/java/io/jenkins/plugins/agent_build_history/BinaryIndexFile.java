@@ -0,0 +1,115 @@
+package io.jenkins.plugins.agent_build_history;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Binary node index format.
+ *
+ * <p>The file starts with a header of a magic number and the format version followed by fixed width records of
+ * job id (int), build number (int), start time (long) and result code (byte). Job ids refer to the
+ * {@link JobNameDictionary} of the storage directory. Files are read in chunks of records into a reused buffer, so no
+ * strings are created for the entries. They are not memory mapped, a mapping is only released by garbage collection
+ * and would keep the file from being replaced or deleted on Windows until then.
+ */
+@Restricted(NoExternalUse.class)
+public class BinaryIndexFile {
+
+  private static final Logger LOGGER = Logger.getLogger(BinaryIndexFile.class.getName());
+  private static final int MAGIC = 0x41424831; // ABH1
+  private static final int VERSION = 1;
+  static final int HEADER_SIZE = 8;
+  static final int RECORD_SIZE = 17;
+  // Records read at once
+  private static final int READ_RECORDS = 4096;
+
+  private BinaryIndexFile() {
+  }
+
+  static NodeIndex read(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long length = channel.size();
+      if (length < HEADER_SIZE) {
+        return new NodeIndex();
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(READ_RECORDS * RECORD_SIZE);
+      buffer.limit(HEADER_SIZE);
+      readFully(channel, buffer);
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException("Not a binary index file: " + file);
+      }
+      int version = buffer.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported binary index version " + version + " in " + file);
+      }
+      int count = (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+      NodeIndex index = new NodeIndex(count);
+      for (int i = 0; i < count; ) {
+        buffer.clear();
+        buffer.limit(Math.min(count - i, READ_RECORDS) * RECORD_SIZE);
+        readFully(channel, buffer);
+        while (buffer.hasRemaining()) {
+          long offset = HEADER_SIZE + (long) i++ * RECORD_SIZE;
+          index.add(buffer.getInt(), buffer.getInt(), buffer.getLong(), buffer.get(), offset);
+        }
+      }
+      return index;
+    }
+  }
+
+  // Fills the buffer up to its limit and flips it for reading
+  private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException("Unexpected end of binary index file");
+      }
+    }
+    buffer.flip();
+  }
+
+  /*
+   * Appends the entries to the file. A partial record left by an interrupted append is cut off first, read() ignores
+   * it, but appending after it would misalign all later records.
+   */
+  static void append(File file, NodeIndex entries) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      long length = channel.size();
+      ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + entries.size() * RECORD_SIZE);
+      if (length < HEADER_SIZE) {
+        length = 0;
+        buffer.putInt(MAGIC).putInt(VERSION);
+      } else {
+        length = HEADER_SIZE + (length - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+      }
+      if (length != channel.size()) {
+        LOGGER.log(Level.WARNING, "Removing incomplete record at the end of " + file);
+        channel.truncate(length);
+      }
+      for (int i = 0; i < entries.size(); i++) {
+        buffer.putInt(entries.getJobId(i)).putInt(entries.getNumber(i)).putLong(entries.getStartTime(i)).put(entries.getResultCode(i));
+      }
+      buffer.flip();
+      channel.position(length);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+
+  static byte[] toBytes(NodeIndex index) {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + index.size() * RECORD_SIZE);
+    buffer.putInt(MAGIC).putInt(VERSION);
+    for (int i = 0; i < index.size(); i++) {
+      buffer.putInt(index.getJobId(i)).putInt(index.getNumber(i)).putLong(index.getStartTime(i)).put(index.getResultCode(i));
+    }
+    return buffer.array();
+  }
+}
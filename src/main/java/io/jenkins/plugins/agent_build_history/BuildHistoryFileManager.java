@@ -1,20 +1,31 @@
 package io.jenkins.plugins.agent_build_history;
 
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractBuild;
 import hudson.model.Result;
 import hudson.model.Run;
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.Collections;
-import java.util.HashMap;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
@@ -23,107 +34,585 @@ public class BuildHistoryFileManager {
 
   private static final Logger LOGGER = Logger.getLogger(BuildHistoryFileManager.class.getName());
   public static final String separator = ";";
+  // Compact right away when the journal grows beyond this size instead of waiting for the compactor
+  private static final long MAX_JOURNAL_SIZE = 1024 * 1024;
+  // Files written by a compaction before they replace the old ones and the marker that commits them
+  static final String STAGED_SUFFIX = ".compacting";
+  static final String COMPACTION_MARKER_SUFFIX = "_compaction.txt";
 
-  // Handle locks for different nodes
-  private static final Map<String, Object> nodeLocks = new HashMap<>();
+  /*
+   * Handle locks for different nodes. The locks are striped by the hash of the node name, so the number of locks
+   * stays bounded no matter how many agents come and go. Readers of the same node share the read lock, changes take
+   * the write lock.
+   */
+  private static final int LOCK_STRIPES = 256;
+  private static final ReadWriteLock[] nodeLocks = new ReadWriteLock[LOCK_STRIPES];
 
-  public static Object getNodeLock(String nodeName) {
-    synchronized (nodeLocks) {
-      return nodeLocks.computeIfAbsent(nodeName, k -> new Object());
+  static {
+    for (int i = 0; i < LOCK_STRIPES; i++) {
+      nodeLocks[i] = new ReentrantReadWriteLock();
     }
   }
 
-  // Reads the index file for a given node and returns the list of lines
+  public static ReadWriteLock getNodeLock(String nodeName) {
+    return nodeLocks[Math.floorMod(nodeName.hashCode(), LOCK_STRIPES)];
+  }
+
+  // Reads the index file for a given node and returns the list of lines with the journal applied
   public static List<String> readIndexFile(String nodeName, String storageDir) {
-    Object lock = getNodeLock(nodeName);
-    synchronized (lock) {
-      File indexFile = new File(storageDir + "/" + nodeName + "_index.txt");
-      if (indexFile.exists()) {
+    // Include entries that are still queued, must not be called under the node lock
+    IndexWriteQueue.flush(nodeName);
+    Lock lock = getNodeLock(nodeName).readLock();
+    lock.lock();
+    try {
+      return loadIndex(nodeName, storageDir).toLines(JobNameDictionary.get(storageDir));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Returns a copy of the index of a given node
+  public static NodeIndex readIndex(String nodeName, String storageDir) {
+    Lock lock = getNodeLock(nodeName).readLock();
+    lock.lock();
+    try {
+      return loadIndex(nodeName, storageDir).copy();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Applies the function to the shared index of the node under the read lock, the index must not be modified
+  public static <T> T queryIndex(String nodeName, String storageDir, Function<NodeIndex, T> function) {
+    Lock lock = getNodeLock(nodeName).readLock();
+    lock.lock();
+    try {
+      return function.apply(loadIndex(nodeName, storageDir));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Returns the entries of the node that started between from and to. Only the segments covering that time range are
+   * read when the index is not cached.
+   */
+  public static NodeIndex readIndex(String nodeName, String storageDir, long from, long to) {
+    Lock lock = getNodeLock(nodeName).readLock();
+    lock.lock();
+    try {
+      NodeIndex cached = NodeIndexCache.get(nodeName, storageDir);
+      NodeIndex index = cached != null ? cached.copy() : readFromDisk(nodeName, storageDir, IndexSegments.list(nodeName, storageDir, from, to));
+      index.retainStartTimes(from, to);
+      return index;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Splits the time from start on into ranges of one segment each, descending towards older entries or ascending
+   * towards newer ones, so an uncached index can be read range by range with readIndex. Each range is {from, to}.
+   */
+  static List<long[]> getSegmentRanges(String nodeName, String storageDir, long start, boolean descending) {
+    List<long[]> ranges = new ArrayList<>();
+    TreeMap<Long, File> segments = IndexSegments.list(nodeName, storageDir);
+    if (descending) {
+      long to = start;
+      for (Long segmentStart : segments.headMap(start, true).descendingKeySet()) {
+        ranges.add(new long[] {segmentStart, to});
+        to = segmentStart - 1;
+      }
+      ranges.add(new long[] {Long.MIN_VALUE, to});
+    } else {
+      long from = start;
+      for (Long segmentStart : segments.tailMap(start, false).keySet()) {
+        ranges.add(new long[] {from, segmentStart - 1});
+        from = segmentStart;
+      }
+      ranges.add(new long[] {from, Long.MAX_VALUE});
+    }
+    return ranges;
+  }
+
+  /*
+   * Returns the cached index of the node or reads it in either format and applies the journal. The returned index
+   * is shared, callers must hold the node lock.
+   */
+  private static NodeIndex loadIndex(String nodeName, String storageDir) {
+    NodeIndex cached = NodeIndexCache.get(nodeName, storageDir);
+    if (cached != null) {
+      return cached;
+    }
+    NodeIndex index = readFromDisk(nodeName, storageDir, IndexSegments.list(nodeName, storageDir));
+    NodeIndexCache.put(nodeName, storageDir, index);
+    NodeIndexCache.putFilter(nodeName, storageDir, RunBloomFilter.of(index));
+    return index;
+  }
+
+  // Reads the given segments and the base file of the node and applies the journal
+  private static NodeIndex readFromDisk(String nodeName, String storageDir, Map<Long, File> segments) {
+    JobNameDictionary dictionary = JobNameDictionary.get(storageDir);
+    File binaryIndexFile = getBinaryIndexFile(nodeName, storageDir);
+    File indexFile = getIndexFile(nodeName, storageDir);
+    NodeIndex index = new NodeIndex();
+    try {
+      for (File segmentFile : segments.values()) {
+        index.addAll(IndexSegments.read(segmentFile, dictionary), -1L);
+      }
+      if (binaryIndexFile.exists()) {
+        index.addAll(BinaryIndexFile.read(binaryIndexFile), null);
+      } else if (indexFile.exists()) {
+        index.addAll(NodeIndex.parse(Files.readAllBytes(indexFile.toPath()), dictionary), null);
+      }
+      return IndexJournal.fold(index, IndexJournal.readRecords(IndexJournal.getJournalFile(nodeName, storageDir)), dictionary);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to read index file for node " + nodeName, e);
+      return new NodeIndex();
+    }
+  }
+
+  // Applies a change to the cached index of the node, if there is one
+  private static void updateCache(String nodeName, String storageDir, Consumer<NodeIndex> update) {
+    NodeIndex cached = NodeIndexCache.get(nodeName, storageDir);
+    if (cached != null) {
+      update.accept(cached);
+      NodeIndexCache.updated(nodeName, storageDir);
+    }
+  }
+
+  private static File getIndexFile(String nodeName, String storageDir) {
+    return new File(storageDir + "/" + nodeName + "_index.txt");
+  }
+
+  private static File getBinaryIndexFile(String nodeName, String storageDir) {
+    return new File(storageDir + "/" + nodeName + "_index.bin");
+  }
+
+  // Returns the base file of the node in the format it is currently stored in
+  private static File getBaseFile(String nodeName, String storageDir) {
+    File binaryIndexFile = getBinaryIndexFile(nodeName, storageDir);
+    if (binaryIndexFile.exists()) {
+      return binaryIndexFile;
+    }
+    File indexFile = getIndexFile(nodeName, storageDir);
+    if (indexFile.exists() || !isBinaryIndexEnabled()) {
+      return indexFile;
+    }
+    return binaryIndexFile;
+  }
+
+  public static void updateResult(String nodeName, Run<?, ?> run, String storageDir) {
+    Result result = run.getResult();
+    if (run.isLogUpdated() || result == null) {
+      return;
+    }
+    int jobId = JobNameDictionary.get(storageDir).lookup(run.getParent().getFullName());
+    if (jobId >= 0) {
+      int number = run.getNumber();
+      appendToJournal(nodeName, storageDir, index -> index.setResult(jobId, number, NodeIndex.toCode(result)),
+          IndexJournal.RESULT, JobNameDictionary.toField(jobId), String.valueOf(number), result.toString());
+    }
+    // the entry has its result now, so the run no longer counts as running on the node
+    RunningBuilds.remove(nodeName, run);
+  }
+
+  /*
+   * Appends a delta record to the journal of the node and applies the same change to the cached index. Without
+   * journal mode the base file is compacted right away, which gives the same on-disk state as rewriting the index
+   * file.
+   */
+  private static void appendToJournal(String nodeName, String storageDir, Consumer<NodeIndex> update, String type, String... fields) {
+    Lock lock = getNodeLock(nodeName).writeLock();
+    lock.lock();
+    try {
+      File baseFile = getBaseFile(nodeName, storageDir);
+      if (!baseFile.exists()) {
+        return;
+      }
+      File journalFile = IndexJournal.getJournalFile(nodeName, storageDir);
+      try {
+        IndexJournal.append(journalFile, type, baseFile.length(), fields);
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to append to journal for node " + nodeName, e);
+        NodeIndexCache.invalidate(nodeName, storageDir);
+        return;
+      }
+      updateCache(nodeName, storageDir, update);
+      if (!isJournalEnabled() || journalFile.length() > MAX_JOURNAL_SIZE) {
+        compact(nodeName, storageDir);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static boolean isJournalEnabled() {
+    AgentBuildHistoryConfig config = AgentBuildHistoryConfig.get();
+    return config == null || config.isJournalEnabled();
+  }
+
+  private static int getRetentionDays() {
+    AgentBuildHistoryConfig config = AgentBuildHistoryConfig.get();
+    return config != null ? config.getRetentionDays() : 0;
+  }
+
+  private static boolean isBinaryIndexEnabled() {
+    AgentBuildHistoryConfig config = AgentBuildHistoryConfig.get();
+    return config != null && config.isBinaryIndexEnabled();
+  }
+
+  /*
+   * Rewrites the index of the node with the journal applied and removes the journal. Entries that started before the
+   * current week are moved into segments and entries older than the retention window are dropped. All files are
+   * written in the configured format, so this also migrates nodes between the text and the binary format.
+   *
+   * The new files are staged next to the old ones, then a marker listing them commits the compaction. Only after that
+   * the staged files replace the old ones and the journal is deleted, so after a crash either the old files with the
+   * journal or the complete new files are used, see recoverCompaction.
+   */
+  public static void compact(String nodeName, String storageDir) {
+    Lock lock = getNodeLock(nodeName).writeLock();
+    lock.lock();
+    try {
+      recoverCompaction(nodeName, storageDir);
+      File indexFile = getIndexFile(nodeName, storageDir);
+      File binaryIndexFile = getBinaryIndexFile(nodeName, storageDir);
+      if (!indexFile.exists() && !binaryIndexFile.exists() && IndexSegments.getFiles(nodeName, storageDir).isEmpty()) {
+        return;
+      }
+      boolean binary = isBinaryIndexEnabled();
+      File targetFile = binary ? binaryIndexFile : indexFile;
+
+      long now = System.currentTimeMillis();
+      int retentionDays = getRetentionDays();
+      NodeIndex index = loadIndex(nodeName, storageDir).copy();
+      if (retentionDays > 0) {
+        index.retainStartTimes(now - TimeUnit.DAYS.toMillis(retentionDays), Long.MAX_VALUE);
+      }
+      long currentSegment = IndexSegments.segmentStart(now);
+      Map<Long, NodeIndex> segments = IndexSegments.split(index, currentSegment);
+      NodeIndex current = index.copy();
+      current.retainStartTimes(currentSegment, Long.MAX_VALUE);
+
+      Set<String> written = new HashSet<>();
+      try {
+        for (Map.Entry<Long, NodeIndex> segment : segments.entrySet()) {
+          File segmentFile = IndexSegments.getSegmentFile(nodeName, storageDir, segment.getKey(), binary);
+          stage(segmentFile, IndexSegments.toBytes(segment.getValue(), binary));
+          written.add(segmentFile.getName());
+        }
+        stage(targetFile, IndexSegments.toBytes(current, binary));
+        written.add(targetFile.getName());
+        IndexSegments.write(getCompactionMarker(nodeName, storageDir),
+            String.join("\n", written).getBytes(StandardCharsets.UTF_8));
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to compact index file for node " + nodeName, e);
+        deleteStagedFiles(nodeName, storageDir);
+        return;
+      }
+      completeCompaction(nodeName, storageDir, written);
+
+      // The journal is empty now, so later records apply to all entries
+      NodeIndex compacted = new NodeIndex(index.size());
+      for (NodeIndex segment : segments.values()) {
+        compacted.addAll(segment, -1L);
+      }
+      compacted.addAll(current, -1L);
+      if (NodeIndexCache.get(nodeName, storageDir) != null) {
+        NodeIndexCache.put(nodeName, storageDir, compacted);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static File getCompactionMarker(String nodeName, String storageDir) {
+    return new File(storageDir, nodeName + COMPACTION_MARKER_SUFFIX);
+  }
+
+  private static File getStagedFile(File file) {
+    return new File(file.getPath() + STAGED_SUFFIX);
+  }
+
+  // Writes the content to the staged file unless the file already has it
+  private static void stage(File file, byte[] content) throws IOException {
+    if (file.exists() && file.length() == content.length && Arrays.equals(Files.readAllBytes(file.toPath()), content)) {
+      return;
+    }
+    IndexSegments.write(getStagedFile(file), content);
+  }
+
+  // Moves the staged files in place and removes the files and the journal that were replaced by them
+  private static void completeCompaction(String nodeName, String storageDir, Set<String> written) {
+    for (String fileName : written) {
+      File file = new File(storageDir, fileName);
+      File stagedFile = getStagedFile(file);
+      if (stagedFile.exists()) {
         try {
-          return Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8);
+          Files.move(stagedFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
-          LOGGER.log(Level.WARNING, "Failed to read index file for node " + nodeName, e);
-          return Collections.emptyList();
+          // the marker stays, so the next compaction or restart completes it
+          LOGGER.log(Level.WARNING, "Failed to replace " + file + " while compacting node " + nodeName, e);
+          return;
         }
       }
-      return Collections.emptyList();
+    }
+    // Remove expired and merged segments and the files in the other format
+    List<File> replaced = new ArrayList<>(IndexSegments.getFiles(nodeName, storageDir));
+    replaced.add(getIndexFile(nodeName, storageDir));
+    replaced.add(getBinaryIndexFile(nodeName, storageDir));
+    for (File file : replaced) {
+      if (!written.contains(file.getName()) && file.exists() && !file.delete()) {
+        LOGGER.log(Level.WARNING, "Failed to delete " + file + " after compaction");
+      }
+    }
+    File journalFile = IndexJournal.getJournalFile(nodeName, storageDir);
+    if (journalFile.exists() && !journalFile.delete()) {
+      LOGGER.log(Level.WARNING, "Failed to delete journal file for node " + nodeName);
+      return;
+    }
+    File marker = getCompactionMarker(nodeName, storageDir);
+    if (!marker.delete()) {
+      LOGGER.log(Level.WARNING, "Failed to delete " + marker);
     }
   }
 
-  public static void updateResult(String nodeName, Run<?, ?> run, String storageDir) {
-    Object lock = getNodeLock(nodeName);
-    String runIdentifier = run.getParent().getFullName() + separator + run.getNumber() + separator;
-    synchronized (lock) {
-      List<String> indexLines = readIndexFile(nodeName, storageDir);
-      StringWriter buffer = new StringWriter();
-      try (BufferedWriter writer = new BufferedWriter(buffer)) {
-        boolean found = false;
-        for (String line : indexLines) {
-          if (line.startsWith(runIdentifier)) {
-            if (!line.endsWith(separator + run.getResult())) {
-              writeLine(writer, run);
-              found = true;
-            } else {
-              writer.write(line);
-            }
-          } else {
-            writer.write(line);
-          }
-          writer.newLine();
-        }
-        if (found) {
-          writer.flush();
-          File indexFile = new File(storageDir + "/" + nodeName + "_index.txt");
-          try (FileWriter fileWriter = new FileWriter(indexFile, StandardCharsets.UTF_8)) {
-            fileWriter.write(buffer.toString());
-          }
+  private static void deleteStagedFiles(String nodeName, String storageDir) {
+    File[] stagedFiles = new File(storageDir).listFiles((dir, name) -> nodeName.equals(getStagedNodeName(name)));
+    if (stagedFiles != null) {
+      for (File stagedFile : stagedFiles) {
+        if (!stagedFile.delete()) {
+          LOGGER.log(Level.WARNING, "Failed to delete " + stagedFile);
         }
+      }
+    }
+  }
+
+  // Returns the node of a staged index or segment file or null if it is no staged file
+  private static String getStagedNodeName(String fileName) {
+    if (!fileName.endsWith(STAGED_SUFFIX)) {
+      return null;
+    }
+    String stagedName = fileName.substring(0, fileName.length() - STAGED_SUFFIX.length());
+    if (stagedName.endsWith("_index.txt") || stagedName.endsWith("_index.bin")) {
+      return stagedName.substring(0, stagedName.length() - "_index.txt".length());
+    }
+    return IndexSegments.getNodeName(stagedName);
+  }
+
+  /*
+   * Finishes a compaction that was interrupted by a crash. With a marker all new files were written, so they are
+   * moved in place and the journal that is already applied to them is deleted. Without it the old files and the
+   * journal are still complete and the staged files are dropped. Callers must hold the write lock of the node.
+   */
+  static void recoverCompaction(String nodeName, String storageDir) {
+    File marker = getCompactionMarker(nodeName, storageDir);
+    if (marker.exists()) {
+      try {
+        Set<String> written = new HashSet<>(Files.readAllLines(marker.toPath(), StandardCharsets.UTF_8));
+        LOGGER.log(Level.INFO, "Completing interrupted compaction of node " + nodeName);
+        completeCompaction(nodeName, storageDir, written);
       } catch (IOException e) {
-        LOGGER.log(Level.WARNING, "Failed to update result in index-file for node " + nodeName, e);
+        LOGGER.log(Level.WARNING, "Failed to read " + marker, e);
+      }
+    } else {
+      deleteStagedFiles(nodeName, storageDir);
+    }
+  }
+
+  // Recovers interrupted compactions of all nodes before the history is used
+  @Initializer(after = InitMilestone.PLUGINS_STARTED)
+  public static void recoverCompactions() {
+    AgentBuildHistoryConfig config = AgentBuildHistoryConfig.get();
+    if (config != null) {
+      recoverCompactions(config.getStorageDir());
+    }
+  }
+
+  static void recoverCompactions(String storageDir) {
+    Set<String> nodeNames = new HashSet<>();
+    File[] files = new File(storageDir).listFiles((dir, name) -> name.endsWith(COMPACTION_MARKER_SUFFIX) || name.endsWith(STAGED_SUFFIX));
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String fileName = file.getName();
+      if (fileName.endsWith(COMPACTION_MARKER_SUFFIX)) {
+        nodeNames.add(fileName.substring(0, fileName.length() - COMPACTION_MARKER_SUFFIX.length()));
+      } else {
+        String nodeName = getStagedNodeName(fileName);
+        if (nodeName != null) {
+          nodeNames.add(nodeName);
+        }
+      }
+    }
+    for (String nodeName : nodeNames) {
+      Lock lock = getNodeLock(nodeName).writeLock();
+      lock.lock();
+      try {
+        recoverCompaction(nodeName, storageDir);
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /*
+   * Method for getting all node names that have pending journal records or have index files or segments that are
+   * not stored in the configured format
+   */
+  public static Set<String> getNodeNamesToCompact(String storageDir) {
+    boolean binary = isBinaryIndexEnabled();
+    String otherSuffix = binary ? "_index.txt" : "_index.bin";
+    String otherSegmentSuffix = binary ? ".txt" : ".bin";
+    Set<String> nodeNames = new HashSet<>();
+    File storageDirectory = new File(storageDir);
+    File[] files = storageDirectory.listFiles();
+
+    if (files != null) {
+      for (File file : files) {
+        String fileName = file.getName();
+        String segmentNodeName = IndexSegments.getNodeName(fileName);
+        if (fileName.endsWith("_journal.txt")) {
+          nodeNames.add(fileName.substring(0, fileName.length() - "_journal.txt".length()));
+        } else if (fileName.endsWith(otherSuffix)) {
+          nodeNames.add(fileName.substring(0, fileName.length() - otherSuffix.length()));
+        } else if (segmentNodeName != null && fileName.endsWith(otherSegmentSuffix)) {
+          nodeNames.add(segmentNodeName);
+        }
       }
-    }}
+    }
+    return nodeNames;
+  }
 
   // Appends a new run entry and updates the index
   public static void addRunToNodeIndex(String nodeName, Run<?, ?> run, String storageDir) {
-    Object lock = getNodeLock(nodeName);
-    if (run instanceof WorkflowRun) {
-      HistoryAction action = run.getAction(HistoryAction.class);
-      if (action != null) {
-        action.addAgent(nodeName);
+    addRunsToNodeIndex(nodeName, List.of(run), storageDir);
+  }
+
+  // Appends the runs that are not in the index yet with a single write
+  public static void addRunsToNodeIndex(String nodeName, List<Run<?, ?>> runs, String storageDir) {
+    Lock lock = getNodeLock(nodeName).writeLock();
+    for (Run<?, ?> run : runs) {
+      if (run instanceof WorkflowRun) {
+        HistoryAction action = run.getAction(HistoryAction.class);
+        if (action != null) {
+          action.addAgent(nodeName);
+        }
       }
     }
-    synchronized (lock) {
+    Set<String> jobNames = new HashSet<>();
+    lock.lock();
+    try {
       // Update index for the node
-      File indexFile = new File(storageDir + "/" + nodeName + "_index" + ".txt");
-      List<String> lines = readIndexFile(nodeName, storageDir);
-      String lineMatch = run.getParent().getFullName() + separator + run.getNumber() + separator;
-      boolean exists = lines.stream().anyMatch(line -> line.startsWith(lineMatch));
-      if (!exists) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(indexFile, StandardCharsets.UTF_8, true))) {
-          writeLine(writer, run);
-          writer.newLine();
-        } catch (IOException e) {
-          LOGGER.log(Level.WARNING, "Failed to update index for node " + nodeName, e);
+      File baseFile = getBaseFile(nodeName, storageDir);
+      // Only read the index when the bloom filter can't rule out that the run is already part of it
+      NodeIndex index = NodeIndexCache.get(nodeName, storageDir);
+      RunBloomFilter filter = NodeIndexCache.getFilter(nodeName, storageDir);
+      JobNameDictionary dictionary = JobNameDictionary.get(storageDir);
+      NodeIndex added = new NodeIndex(runs.size());
+      long offset = baseFile.length();
+      for (Run<?, ?> run : runs) {
+        String jobName = run.getParent().getFullName();
+        int jobId = dictionary.getId(jobName);
+        if (index == null && (filter == null || filter.mightContain(NodeIndex.runKey(jobId, run.getNumber())))) {
+          index = loadIndex(nodeName, storageDir);
+        }
+        if ((index != null && index.contains(jobId, run.getNumber())) || added.contains(jobId, run.getNumber())) {
+          continue;
         }
+        byte result = NodeIndex.toCode(run.isLogUpdated() ? null : run.getResult());
+        added.add(jobId, run.getNumber(), run.getStartTimeInMillis(), result, offset);
+        jobNames.add(jobName);
       }
+      if (added.size() == 0 || !append(nodeName, baseFile, added, storageDir)) {
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+    // Not under the node lock, the job node index might need to read node indexes when it is built
+    JobNodeIndex jobNodeIndex = JobNodeIndex.get(storageDir);
+    for (String jobName : jobNames) {
+      jobNodeIndex.add(jobName, nodeName);
     }
   }
 
-  private static void writeLine(BufferedWriter writer, Run<?, ?> run) throws IOException {
-    writer.write(run.getParent().getFullName() + separator + run.getNumber() + separator + run.getStartTimeInMillis());
-    if (!run.isLogUpdated()) {
-      Result result = run.getResult();
-      if (result != null) {
-        writer.write(separator + result.toString());
+  /*
+   * Imports entries in bulk, e.g. from the synchronization of existing runs. The index is read at most once and the
+   * entries that are not part of it yet are appended with a single write, which throws when it fails.
+   */
+  public static void importEntries(String nodeName, NodeIndex entries, String storageDir) throws IOException {
+    Lock lock = getNodeLock(nodeName).writeLock();
+    Set<Integer> jobIds = new HashSet<>();
+    lock.lock();
+    try {
+      File baseFile = getBaseFile(nodeName, storageDir);
+      NodeIndex index = loadIndex(nodeName, storageDir);
+      NodeIndex added = new NodeIndex(entries.size());
+      long offset = baseFile.length();
+      for (int i = 0; i < entries.size(); i++) {
+        int jobId = entries.getJobId(i);
+        int number = entries.getNumber(i);
+        if (index.contains(jobId, number) || added.contains(jobId, number)) {
+          continue;
+        }
+        added.add(jobId, number, entries.getStartTime(i), entries.getResultCode(i), offset);
+        jobIds.add(jobId);
+      }
+      if (added.size() == 0) {
+        return;
+      }
+      if (!append(nodeName, baseFile, added, storageDir)) {
+        throw new IOException("Failed to import entries into the index of node " + nodeName);
       }
+    } finally {
+      lock.unlock();
     }
+    JobNameDictionary dictionary = JobNameDictionary.get(storageDir);
+    JobNodeIndex jobNodeIndex = JobNodeIndex.get(storageDir);
+    for (int jobId : jobIds) {
+      String jobName = dictionary.getName(jobId);
+      if (jobName != null) {
+        jobNodeIndex.add(jobName, nodeName);
+      }
+    }
+  }
+
+  // Appends the entries to the base file and updates the cache, callers must hold the write lock
+  private static boolean append(String nodeName, File baseFile, NodeIndex added, String storageDir) {
+    try {
+      if (baseFile.getName().endsWith(".bin")) {
+        BinaryIndexFile.append(baseFile, added);
+      } else {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(baseFile, StandardCharsets.UTF_8, true))) {
+          for (int i = 0; i < added.size(); i++) {
+            writer.write(added.toFileLine(i));
+            writer.newLine();
+          }
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to update index for node " + nodeName, e);
+      NodeIndexCache.invalidate(nodeName, storageDir);
+      return false;
+    }
+    updateCache(nodeName, storageDir, cached -> cached.addAll(added, null));
+    RunBloomFilter currentFilter = NodeIndexCache.getFilter(nodeName, storageDir);
+    if (currentFilter != null) {
+      for (int i = 0; i < added.size(); i++) {
+        currentFilter.put(NodeIndex.runKey(added.getJobId(i), added.getNumber(i)));
+      }
+    }
+    return true;
   }
 
   // Method for getting all saved node names
   public static Set<String> getAllSavedNodeNames(String storageDir) {
     Set<String> nodeNames = new HashSet<>();
     File storageDirectory = new File(storageDir);
-    File[] files = storageDirectory.listFiles((dir, name) -> name.endsWith("_index.txt"));
+    File[] files = storageDirectory.listFiles((dir, name) -> name.endsWith("_index.txt") || name.endsWith("_index.bin"));
 
     if (files != null) {
       for (File file : files) {
@@ -137,87 +626,145 @@ public class BuildHistoryFileManager {
 
 
   public static void deleteExecution(String nodeName, String jobName, int buildNumber, String storageDir) {
-    Object lock = getNodeLock(nodeName);
-    String runIdentifier = jobName + separator + buildNumber + separator;
-    synchronized (lock) {
-      List<String> indexLines = readIndexFile(nodeName, storageDir);
-      File indexFile = new File(storageDir + "/" + nodeName + "_index.txt");
-      try (BufferedWriter writer = new BufferedWriter(new FileWriter(indexFile, StandardCharsets.UTF_8))) {
-        for (String line : indexLines) {
-          if (!line.startsWith(runIdentifier)) {
-            writer.write(line);
-            writer.newLine();
-          }
-        }
-      } catch (IOException e) {
-        LOGGER.log(Level.WARNING, "Failed to delete Execution for Node: " + nodeName + " job: " + jobName + " build: " + buildNumber, e);
+    int jobId = JobNameDictionary.get(storageDir).lookup(jobName);
+    if (jobId < 0) {
+      return;
+    }
+    appendToJournal(nodeName, storageDir, index -> index.remove(jobId, buildNumber),
+        IndexJournal.DELETE_RUN, JobNameDictionary.toField(jobId), String.valueOf(buildNumber));
+  }
+
+  // Returns the nodes that might have the run in their index
+  public static Set<String> getNodeNamesForRun(Run<?, ?> run, String storageDir) {
+    if (run instanceof AbstractBuild<?, ?> build) {
+      String builtOn = build.getBuiltOnStr();
+      if (builtOn != null) {
+        return Set.of(builtOn);
+      }
+    } else {
+      HistoryAction action = run.getAction(HistoryAction.class);
+      if (action != null) {
+        return action.getAgents();
       }
     }
+    return JobNodeIndex.get(storageDir).getNodes(run.getParent().getFullName());
   }
 
   public static void deleteJobSerialization(String jobName, String storageDir) {
-    Set<String> nodeNames = getAllSavedNodeNames(storageDir);
-    for (String nodeName : nodeNames) {
-      Object lock = getNodeLock(nodeName);
-      synchronized (lock) {
-        List<String> indexLines = readIndexFile(nodeName, storageDir);
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(storageDir + "/" + nodeName + "_index.txt", StandardCharsets.UTF_8))) {
-          for (String line : indexLines) {
-            if (!line.startsWith(jobName + separator)) {
-              writer.write(line);
-              writer.newLine();
-            }
-          }
-        } catch (IOException e) {
-          LOGGER.log(Level.WARNING, "Failed to delete job from index-file for job: " + jobName + ", node: " + nodeName, e);
-        }
+    JobNodeIndex jobNodeIndex = JobNodeIndex.get(storageDir);
+    int jobId = JobNameDictionary.get(storageDir).lookup(jobName);
+    if (jobId >= 0) {
+      for (String nodeName : jobNodeIndex.getNodes(jobName)) {
+        appendToJournal(nodeName, storageDir, index -> index.removeJob(jobId), IndexJournal.DELETE_JOB, JobNameDictionary.toField(jobId));
       }
     }
-
+    jobNodeIndex.removeJob(jobName);
   }
 
   // Delete the index file of a node
   public static void deleteNodeSerializations(String nodeName, String storageDir) {
-    Object lock = getNodeLock(nodeName);
-    synchronized (lock) {
-      File indexFile = new File(storageDir + "/" + nodeName + "_index.txt");
+    Lock lock = getNodeLock(nodeName).writeLock();
+    lock.lock();
+    try {
+      File indexFile = getIndexFile(nodeName, storageDir);
       if (indexFile.exists() && !indexFile.delete()) {
         LOGGER.log(Level.WARNING, "Failed to delete index file for node: " + nodeName);
       }
+      File binaryIndexFile = getBinaryIndexFile(nodeName, storageDir);
+      if (binaryIndexFile.exists() && !binaryIndexFile.delete()) {
+        LOGGER.log(Level.WARNING, "Failed to delete binary index file for node: " + nodeName);
+      }
+      File journalFile = IndexJournal.getJournalFile(nodeName, storageDir);
+      if (journalFile.exists() && !journalFile.delete()) {
+        LOGGER.log(Level.WARNING, "Failed to delete journal file for node: " + nodeName);
+      }
+      for (File segmentFile : IndexSegments.getFiles(nodeName, storageDir)) {
+        if (!segmentFile.delete()) {
+          LOGGER.log(Level.WARNING, "Failed to delete segment file " + segmentFile + " for node: " + nodeName);
+        }
+      }
+      NodeIndexCache.invalidate(nodeName, storageDir);
+    } finally {
+      lock.unlock();
     }
+    JobNodeIndex.get(storageDir).removeNode(nodeName);
   }
 
   public static void renameNodeFiles(String oldNodeName, String newNodeName, String storageDir) {
-    Object lock = getNodeLock(oldNodeName);
-    synchronized (lock) {
-      File oldIndexFile = new File(storageDir + "/" + oldNodeName + "_index.txt");
-      File newIndexFile = new File(storageDir + "/" + newNodeName + "_index.txt");
+    Lock lock = getNodeLock(oldNodeName).writeLock();
+    lock.lock();
+    try {
+      File oldIndexFile = getIndexFile(oldNodeName, storageDir);
+      File newIndexFile = getIndexFile(newNodeName, storageDir);
       if (oldIndexFile.exists() && !oldIndexFile.renameTo(newIndexFile)) {
         LOGGER.log(Level.WARNING, "Failed to rename index file from: " + oldNodeName + " to: " + newNodeName);
       }
+      File oldBinaryIndexFile = getBinaryIndexFile(oldNodeName, storageDir);
+      File newBinaryIndexFile = getBinaryIndexFile(newNodeName, storageDir);
+      if (oldBinaryIndexFile.exists() && !oldBinaryIndexFile.renameTo(newBinaryIndexFile)) {
+        LOGGER.log(Level.WARNING, "Failed to rename binary index file from: " + oldNodeName + " to: " + newNodeName);
+      }
+      File oldJournalFile = IndexJournal.getJournalFile(oldNodeName, storageDir);
+      File newJournalFile = IndexJournal.getJournalFile(newNodeName, storageDir);
+      if (oldJournalFile.exists() && !oldJournalFile.renameTo(newJournalFile)) {
+        LOGGER.log(Level.WARNING, "Failed to rename journal file from: " + oldNodeName + " to: " + newNodeName);
+      }
+      for (File oldSegmentFile : IndexSegments.getFiles(oldNodeName, storageDir)) {
+        String suffix = oldSegmentFile.getName().substring(oldNodeName.length());
+        if (!oldSegmentFile.renameTo(new File(storageDir + "/" + newNodeName + suffix))) {
+          LOGGER.log(Level.WARNING, "Failed to rename segment file " + oldSegmentFile + " to node: " + newNodeName);
+        }
+      }
+      NodeIndexCache.invalidate(oldNodeName, storageDir);
+      NodeIndexCache.invalidate(newNodeName, storageDir);
+    } finally {
+      lock.unlock();
     }
+    JobNodeIndex.get(storageDir).renameNode(oldNodeName, newNodeName);
   }
 
+  /*
+   * Renames the job in the job name dictionary. Index entries refer to the job by id, so they don't change. Nodes with
+   * files written by older versions that refer to jobs by name are compacted first.
+   */
   public static void renameJob(String oldFullName, String newFullName, String storageDir) {
-    Set<String> nodeNames = getAllSavedNodeNames(storageDir);
-    for (String nodeName : nodeNames) {
-      Object lock = getNodeLock(nodeName);
-      synchronized (lock) {
-        List<String> indexLines = readIndexFile(nodeName, storageDir);
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(storageDir + "/" + nodeName + "_index.txt", StandardCharsets.UTF_8))) {
-          for (String line : indexLines) {
-            if (line.startsWith(oldFullName + separator)) {
-              writer.write(newFullName + line.substring(oldFullName.length()));
-              writer.newLine();
-            } else {
-              writer.write(line);
-              writer.newLine();
-            }
+    JobNodeIndex jobNodeIndex = JobNodeIndex.get(storageDir);
+    for (String nodeName : jobNodeIndex.getNodes(oldFullName)) {
+      if (hasJobNames(nodeName, storageDir)) {
+        compact(nodeName, storageDir);
+      }
+    }
+    JobNameDictionary.get(storageDir).rename(oldFullName, newFullName);
+    jobNodeIndex.renameJob(oldFullName, newFullName);
+  }
+
+  // Checks whether the text index file or the journal of the node still contain job names
+  private static boolean hasJobNames(String nodeName, String storageDir) {
+    Lock lock = getNodeLock(nodeName).readLock();
+    lock.lock();
+    try {
+      File indexFile = getIndexFile(nodeName, storageDir);
+      if (indexFile.exists()) {
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+          // all lines are written by the same version until the file is compacted
+          String line = reader.readLine();
+          if (line != null && !line.isEmpty() && !JobNameDictionary.isIdField(line)) {
+            return true;
           }
-        } catch (IOException e) {
-          LOGGER.log(Level.WARNING, "Failed to rename jobs in index-file in node: " + nodeName, e);
         }
       }
+      for (String record : IndexJournal.readRecords(IndexJournal.getJournalFile(nodeName, storageDir))) {
+        String[] parts = record.split(separator);
+        if (parts.length > 2 && !JobNameDictionary.isIdField(parts[2])) {
+          return true;
+        }
+      }
+      return false;
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to read index of node " + nodeName, e);
+      return true;
+    } finally {
+      lock.unlock();
     }
   }
 }
@@ -0,0 +1,249 @@
+package io.jenkins.plugins.agent_build_history;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntPredicate;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Default storage that keeps the history of each node in index files in the configured storage directory, see
+ * {@link BuildHistoryFileManager}.
+ */
+@Extension(ordinal = -1000)
+@Restricted(NoExternalUse.class)
+public class FlatFileHistoryStorage extends AgentBuildHistoryStorage {
+
+  private static String getStorageDir() {
+    return AgentBuildHistoryConfig.get().getStorageDir();
+  }
+
+  @Override
+  public void addRuns(String nodeName, List<Run<?, ?>> runs) {
+    BuildHistoryFileManager.addRunsToNodeIndex(nodeName, runs, getStorageDir());
+  }
+
+  @Override
+  public void updateResult(String nodeName, Run<?, ?> run) {
+    BuildHistoryFileManager.updateResult(nodeName, run, getStorageDir());
+  }
+
+  @Override
+  public void deleteRun(String nodeName, String jobName, int buildNumber) {
+    BuildHistoryFileManager.deleteExecution(nodeName, jobName, buildNumber, getStorageDir());
+  }
+
+  @Override
+  public void deleteJob(String jobName) {
+    BuildHistoryFileManager.deleteJobSerialization(jobName, getStorageDir());
+  }
+
+  @Override
+  public void deleteNode(String nodeName) {
+    BuildHistoryFileManager.deleteNodeSerializations(nodeName, getStorageDir());
+  }
+
+  @Override
+  public void renameNode(String oldNodeName, String newNodeName) {
+    BuildHistoryFileManager.renameNodeFiles(oldNodeName, newNodeName, getStorageDir());
+  }
+
+  @Override
+  public void renameJob(String oldFullName, String newFullName) {
+    BuildHistoryFileManager.renameJob(oldFullName, newFullName, getStorageDir());
+  }
+
+  @Override
+  public Set<String> getNodeNames() {
+    return BuildHistoryFileManager.getAllSavedNodeNames(getStorageDir());
+  }
+
+  @Override
+  public Set<String> getNodeNamesForRun(Run<?, ?> run) {
+    return BuildHistoryFileManager.getNodeNamesForRun(run, getStorageDir());
+  }
+
+  @Override
+  public HistoryPage query(String nodeName, String sortColumn, String sortOrder, String statusFilter, int offset, int limit) {
+    // Include entries that are still queued
+    IndexWriteQueue.flush(nodeName);
+    String storageDir = getStorageDir();
+    JobNameDictionary dictionary = JobNameDictionary.get(storageDir);
+    return BuildHistoryFileManager.queryIndex(nodeName, storageDir,
+        index -> query(nodeName, index, dictionary, sortColumn, sortOrder, statusFilter, offset, limit, NodeIndexCache.get(nodeName, storageDir) == index));
+  }
+
+  /*
+   * Cursor queries of a node that is not cached read the segments from the cursor on one at a time until the page is
+   * full, so paging through or exporting a long history doesn't read all segments for every page.
+   */
+  @Override
+  public HistoryPage queryAfter(String nodeName, String sortOrder, String statusFilter, HistoryCursor after, int limit) {
+    IndexWriteQueue.flush(nodeName);
+    String storageDir = getStorageDir();
+    JobNameDictionary dictionary = JobNameDictionary.get(storageDir);
+    if (NodeIndexCache.get(nodeName, storageDir) != null) {
+      return BuildHistoryFileManager.queryIndex(nodeName, storageDir, index -> queryAfter(nodeName, index, dictionary, sortOrder, statusFilter, after, limit));
+    }
+    boolean descending = !sortOrder.equals("asc");
+    long start = after != null ? after.startTime() : descending ? Long.MAX_VALUE : Long.MIN_VALUE;
+    List<HistoryEntry> entries = new ArrayList<>();
+    for (long[] range : BuildHistoryFileManager.getSegmentRanges(nodeName, storageDir, start, descending)) {
+      NodeIndex index = BuildHistoryFileManager.readIndex(nodeName, storageDir, range[0], range[1]);
+      entries.addAll(queryAfter(nodeName, index, dictionary, sortOrder, statusFilter, after, limit - entries.size()).entries());
+      if (entries.size() >= limit) {
+        break;
+      }
+    }
+    return new HistoryPage(entries, -1);
+  }
+
+  @Override
+  public Map<String, Integer> getStatusCounts(String nodeName) {
+    IndexWriteQueue.flush(nodeName);
+    String storageDir = getStorageDir();
+    JobNameDictionary dictionary = JobNameDictionary.get(storageDir);
+    return BuildHistoryFileManager.queryIndex(nodeName, storageDir, index -> {
+      Map<String, Integer> counts = new LinkedHashMap<>();
+      IntPredicate visible = visibleJobs(dictionary, new HashMap<>());
+      int running = countRunning(nodeName, index, dictionary, visible);
+      for (String statusFilter : Utils.STATUS_FILTERS) {
+        counts.put(statusFilter, count(index, statusFilter, running, visible));
+      }
+      counts.put("running", running);
+      return counts;
+    });
+  }
+
+  /*
+   * Filters and pages the entries of an index. Entries of jobs that no longer exist are skipped, see filter for
+   * entries without result. The sort permutation of the index is used when it is available or the index is
+   * cached, the scan then stops after the page and the total is taken from the result counters of the visible jobs.
+   * Otherwise only the entries up to the requested page are selected with a bounded heap.
+   */
+  static HistoryPage query(String nodeName, NodeIndex index, JobNameDictionary dictionary, String sortColumn, String sortOrder, String statusFilter, int offset, int limit, boolean cached) {
+    boolean descending = !sortOrder.equals("asc");
+    Map<Integer, Job<?, ?>> jobs = new HashMap<>();
+    IntPredicate filter = filter(nodeName, index, dictionary, statusFilter, jobs);
+    int[] totalEntries = new int[1];
+    IntPredicate matches = i -> {
+      if (!filter.test(i)) {
+        return false;
+      }
+      totalEntries[0]++;
+      return true;
+    };
+
+    List<HistoryEntry> entries = new ArrayList<>();
+    if (cached || index.hasOrder(sortColumn, dictionary)) {
+      int[] order = index.getOrder(sortColumn, dictionary);
+      for (int k = 0; k < index.size() && entries.size() < limit; k++) {
+        int i = order == null ? k : order[descending ? index.size() - 1 - k : k];
+        if (matches.test(i) && totalEntries[0] > offset) {
+          entries.add(toEntry(index, i, dictionary));
+        }
+      }
+      IntPredicate visible = visibleJobs(dictionary, jobs);
+      return new HistoryPage(entries, count(index, statusFilter, countRunning(nodeName, index, dictionary, visible), visible));
+    } else {
+      int[] first = index.selectFirst(sortColumn, descending, (int) Math.min((long) offset + limit, Integer.MAX_VALUE), matches, dictionary);
+      for (int k = offset; k < first.length; k++) {
+        entries.add(toEntry(index, first[k], dictionary));
+      }
+    }
+    return new HistoryPage(entries, totalEntries[0]);
+  }
+
+  // Seeks the cursor in the start time order and returns the following matching entries
+  static HistoryPage queryAfter(String nodeName, NodeIndex index, JobNameDictionary dictionary, String sortOrder, String statusFilter, HistoryCursor after, int limit) {
+    boolean descending = !sortOrder.equals("asc");
+    int[] order = index.getOrder("startTime", dictionary);
+    int k;
+    if (after == null) {
+      k = descending ? index.size() - 1 : 0;
+    } else {
+      k = index.seekStartTime(after.startTime(), dictionary.lookup(after.jobName()), after.buildNumber(), descending);
+    }
+    Map<Integer, Job<?, ?>> jobs = new HashMap<>();
+    IntPredicate filter = filter(nodeName, index, dictionary, statusFilter, jobs);
+    List<HistoryEntry> entries = new ArrayList<>();
+    for (; k >= 0 && k < index.size() && entries.size() < limit; k += descending ? -1 : 1) {
+      if (filter.test(order[k])) {
+        entries.add(toEntry(index, order[k], dictionary));
+      }
+    }
+    return new HistoryPage(entries, -1);
+  }
+
+  /*
+   * Counts the entries matching the status filter from the result counters of the jobs that exist and are readable,
+   * so the counts agree with the filter, which skips the other jobs.
+   */
+  private static int count(NodeIndex index, String statusFilter, int running, IntPredicate visible) {
+    Result result = Utils.getFilterResult(statusFilter);
+    if (result == null) {
+      return index.size(visible);
+    }
+    return index.getResultCount(result, visible) + running;
+  }
+
+  /*
+   * Counts the entries of visible jobs without result whose run is running, they match every status filter. The
+   * running builds are counted per node and job, so this doesn't scan the index.
+   */
+  private static int countRunning(String nodeName, NodeIndex index, JobNameDictionary dictionary, IntPredicate visible) {
+    if (nodeName == null || index.getResultCount(null, visible) == 0) {
+      return 0;
+    }
+    return RunningBuilds.count(nodeName, dictionary, visible);
+  }
+
+  /*
+   * Matches entries of existing jobs with a result that passes the status filter. Runs are never loaded: entries
+   * without result match every filter while their run is running, other entries without result only match "all"
+   * and the node is handed to the ResultReconciler to record their results.
+   */
+  private static IntPredicate filter(String nodeName, NodeIndex index, JobNameDictionary dictionary, String statusFilter, Map<Integer, Job<?, ?>> jobs) {
+    boolean[] unknown = new boolean[1];
+    return i -> {
+      Job<?, ?> job = getJob(index.getJobId(i), dictionary, jobs);
+      if (job == null) {
+        return false;
+      }
+      Result result = index.getResult(i);
+      if (result == null && !RunningBuilds.contains(job.getFullName(), index.getNumber(i))) {
+        if (!unknown[0] && nodeName != null) {
+          unknown[0] = true;
+          ResultReconciler.request(nodeName);
+        }
+        return "all".equals(statusFilter);
+      }
+      return Utils.includeRun(result, statusFilter);
+    };
+  }
+
+  // Accepts the ids of jobs that exist and the current user can read
+  private static IntPredicate visibleJobs(JobNameDictionary dictionary, Map<Integer, Job<?, ?>> jobs) {
+    return jobId -> getJob(jobId, dictionary, jobs) != null;
+  }
+
+  private static Job<?, ?> getJob(int jobId, JobNameDictionary dictionary, Map<Integer, Job<?, ?>> jobs) {
+    if (!jobs.containsKey(jobId)) {
+      String jobName = dictionary.getName(jobId);
+      jobs.put(jobId, jobName != null ? JobCache.get(jobName) : null);
+    }
+    return jobs.get(jobId);
+  }
+
+  private static HistoryEntry toEntry(NodeIndex index, int i, JobNameDictionary dictionary) {
+    return new HistoryEntry(dictionary.getName(index.getJobId(i)), index.getNumber(i), index.getStartTime(i), index.getResult(i));
+  }
+}
@@ -0,0 +1,224 @@
+package io.jenkins.plugins.agent_build_history;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.security.ImpersonatingExecutorService;
+import org.jenkinsci.plugins.workflow.cps.nodes.StepStartNode;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graphanalysis.DepthFirstScanner;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.support.actions.WorkspaceActionImpl;
+import org.jenkinsci.plugins.workflow.support.steps.ExecutorStep;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Adds the runs that existed before the plugin was installed to the history of the nodes they ran on.
+ *
+ * <p>The work is partitioned by job. Jobs are processed on a pool with the parallelism configured in
+ * {@link AgentBuildHistoryConfig}, the runs each job found per node are collected in a {@link BackfillBuffer} by the
+ * calling thread as the jobs complete, so only the runs of the jobs in progress are held in memory. The collected
+ * runs are written periodically, after which a {@link BackfillCheckpoint} records the completed jobs, so an
+ * interrupted synchronization resumes where it stopped. The workers are limited by a {@link BackfillThrottle}.
+ */
+@Restricted(NoExternalUse.class)
+public class HistoryBackfill {
+
+  private static final Logger LOGGER = Logger.getLogger(HistoryBackfill.class.getName());
+  // The collected runs are written and the checkpoint is saved in this interval
+  static final long CHECKPOINT_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+
+  private static volatile Progress progress;
+
+  /**
+   * Progress of a running synchronization, the remaining time is -1 until it can be estimated.
+   */
+  public record Progress(int doneJobs, int totalJobs, long remainingMillis) {}
+
+  private record JobResult(String jobName, int lastNumber, Map<String, List<Run<?, ?>>> runsByNode) {}
+
+  private HistoryBackfill() {
+  }
+
+  // Returns the progress of the running synchronization or null
+  static Progress getProgress() {
+    return progress;
+  }
+
+  // Returns whether all jobs were synchronized
+  static boolean run() {
+    String storageDir = AgentBuildHistoryConfig.get().getStorageDir();
+    AgentBuildHistoryStorage storage = AgentBuildHistoryStorage.get();
+    // Other storages get the runs job by job
+    BackfillBuffer buffer = storage instanceof FlatFileHistoryStorage ? new BackfillBuffer(storageDir) : null;
+    BackfillCheckpoint checkpoint = BackfillCheckpoint.load(storageDir);
+    List<Job> jobs = Jenkins.get().getAllItems(Job.class);
+    int parallelism = AgentBuildHistoryConfig.get().getBackfillThreads();
+    LOGGER.log(Level.FINER, () -> "Synchronizing the runs of " + jobs.size() + " jobs with " + parallelism + " threads");
+    long started = System.currentTimeMillis();
+    progress = new Progress(0, jobs.size(), -1);
+    BackfillThrottle throttle = new BackfillThrottle(AgentBuildHistoryConfig.get().getBackfillGraphLoads());
+    ExecutorService pool = Executors.newFixedThreadPool(parallelism,
+        new NamingThreadFactory(new DaemonThreadFactory(), "AgentBuildHistory.backfillWorker"));
+    ExecutorService executor = new ImpersonatingExecutorService(pool, ACL.SYSTEM2);
+    try {
+      CompletionService<JobResult> completion = new ExecutorCompletionService<>(executor);
+      for (Job<?, ?> job : jobs) {
+        int lastNumber = checkpoint.getLastNumber(job.getFullName());
+        completion.submit(() -> scanJob(job, lastNumber, throttle));
+      }
+      // jobs whose runs were collected since the last checkpoint
+      Map<String, Integer> pending = new HashMap<>();
+      long lastCheckpoint = started;
+      for (int i = 0; i < jobs.size(); i++) {
+        try {
+          JobResult result = completion.take().get();
+          for (Map.Entry<String, List<Run<?, ?>>> entry : result.runsByNode().entrySet()) {
+            if (buffer != null) {
+              buffer.add(entry.getKey(), entry.getValue());
+            } else {
+              storage.addRuns(entry.getKey(), entry.getValue());
+            }
+          }
+          pending.put(result.jobName(), result.lastNumber());
+        } catch (ExecutionException e) {
+          LOGGER.log(Level.WARNING, "Failed to synchronize the runs of a job", e.getCause());
+        }
+        int done = i + 1;
+        long elapsed = System.currentTimeMillis() - started;
+        progress = new Progress(done, jobs.size(), elapsed * (jobs.size() - done) / done);
+        if (System.currentTimeMillis() - lastCheckpoint > CHECKPOINT_INTERVAL) {
+          // the runs must be written before the checkpoint records them
+          if (buffer != null) {
+            buffer.flush();
+          }
+          checkpoint.putAll(pending);
+          checkpoint.save();
+          pending.clear();
+          lastCheckpoint = System.currentTimeMillis();
+        }
+      }
+      // Runs started during the synchronization were added by the listeners already
+      IndexWriteQueue.flush();
+      if (buffer != null) {
+        buffer.flush();
+      }
+      checkpoint.delete();
+      return true;
+    } catch (IOException e) {
+      // the collected runs stay in the spill files and their jobs are not checkpointed, the next synchronization
+      // imports them
+      LOGGER.log(Level.WARNING, "Failed to write the synchronized runs, stopping the synchronization", e);
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      if (buffer != null) {
+        buffer.discard();
+      }
+      return false;
+    } finally {
+      progress = null;
+      pool.shutdownNow();
+    }
+  }
+
+  // Returns the runs of the job newer than the last number by the nodes they ran on
+  private static JobResult scanJob(Job<?, ?> job, int lastNumber, BackfillThrottle throttle)
+      throws InterruptedException {
+    Map<String, List<Run<?, ?>>> runsByNode = new HashMap<>();
+    int highest = lastNumber;
+    // builds are ordered from the newest to the oldest
+    for (Run<?, ?> run : job.getBuilds()) {
+      if (run.getNumber() <= lastNumber) {
+        break;
+      }
+      throttle.acquireRun();
+      LOGGER.finer("Loading run " + run.getFullDisplayName());
+      highest = Math.max(highest, run.getNumber());
+      Set<String> nodeNames;
+      if (requiresGraphScan(run)) {
+        throttle.acquireGraphLoad();
+        try {
+          nodeNames = getNodeNames(run);
+        } finally {
+          throttle.releaseGraphLoad();
+        }
+      } else {
+        nodeNames = getNodeNames(run);
+      }
+      for (String nodeName : nodeNames) {
+        runsByNode.computeIfAbsent(nodeName, k -> new ArrayList<>()).add(run);
+      }
+    }
+    return new JobResult(job.getFullName(), highest, runsByNode);
+  }
+
+  // Returns the existing nodes the run used, the empty name is the built-in node
+  static Set<String> getNodeNames(Run<?, ?> run) {
+    Set<String> nodeNames = new LinkedHashSet<>();
+    if (run instanceof AbstractBuild<?, ?> build) {
+      Node node = build.getBuiltOn();
+      if (node != null) {
+        nodeNames.add(node.getNodeName());
+      }
+    } else if (run instanceof WorkflowRun wfr) {
+      HistoryAction action = wfr.getAction(HistoryAction.class);
+      // the agents of runs started with the plugin installed were recorded, even if there are none
+      Iterable<String> agents = action != null ? action.getAgents() : scanFlowGraph(wfr);
+      for (String nodeName : agents) {
+        // empty node name means it was run on built-in
+        if (nodeName.isBlank() || Jenkins.get().getNode(nodeName) != null) {
+          nodeNames.add(nodeName);
+        }
+      }
+    }
+    return nodeNames;
+  }
+
+  // Only runs from before the plugin was installed need their flow graph loaded
+  static boolean requiresGraphScan(Run<?, ?> run) {
+    return run instanceof WorkflowRun && run.getAction(HistoryAction.class) == null;
+  }
+
+  private static Set<String> scanFlowGraph(WorkflowRun run) {
+    Set<String> nodeNames = new LinkedHashSet<>();
+    FlowExecution flowExecution = run.getExecution();
+    if (flowExecution != null) {
+      for (FlowNode flowNode : new DepthFirstScanner().allNodes(flowExecution)) {
+        if (!(flowNode instanceof StepStartNode startNode)) {
+          continue;
+        }
+        for (WorkspaceActionImpl action : flowNode.getActions(WorkspaceActionImpl.class)) {
+          StepDescriptor descriptor = startNode.getDescriptor();
+          if (descriptor instanceof ExecutorStep.DescriptorImpl) {
+            nodeNames.add(action.getNode());
+          }
+        }
+      }
+    }
+    return nodeNames;
+  }
+}
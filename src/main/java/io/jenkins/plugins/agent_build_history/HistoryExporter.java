@@ -0,0 +1,146 @@
+package io.jenkins.plugins.agent_build_history;
+
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Streams the whole history of a node as NDJSON or CSV.
+ *
+ * <p>The history is read in chunks with cursor queries, so memory usage doesn't depend on the size of the history and
+ * the node is not locked while the rows are written. Runs are only loaded for fields that are not part of the index.
+ */
+@Restricted(NoExternalUse.class)
+public class HistoryExporter {
+
+  static final int CHUNK_SIZE = 1000;
+  static final List<String> FIELDS = List.of("job", "number", "startTime", "result", "url", "displayName", "duration");
+  static final List<String> DEFAULT_FIELDS = List.of("job", "number", "startTime", "result");
+  // Fields that need the run to be loaded
+  private static final List<String> RUN_FIELDS = List.of("displayName", "duration");
+
+  private final boolean csv;
+  private final List<String> fields;
+  private final boolean loadRuns;
+
+  /**
+   * @param format either {@code ndjson} or {@code csv}
+   * @param fields the exported fields out of {@link #FIELDS}
+   * @throws IllegalArgumentException for unknown formats or fields
+   */
+  public HistoryExporter(String format, List<String> fields) {
+    if (!"ndjson".equals(format) && !"csv".equals(format)) {
+      throw new IllegalArgumentException("Unknown format " + format);
+    }
+    for (String field : fields) {
+      if (!FIELDS.contains(field)) {
+        throw new IllegalArgumentException("Unknown field " + field);
+      }
+    }
+    this.csv = "csv".equals(format);
+    this.fields = List.copyOf(fields);
+    this.loadRuns = fields.stream().anyMatch(RUN_FIELDS::contains);
+  }
+
+  // Parses a comma separated list of fields, null or empty selects the default fields
+  static List<String> parseFields(String fields) {
+    if (fields == null || fields.isBlank()) {
+      return DEFAULT_FIELDS;
+    }
+    List<String> parsed = new ArrayList<>();
+    for (String field : fields.split(",")) {
+      if (!field.isBlank()) {
+        parsed.add(field.trim());
+      }
+    }
+    return parsed;
+  }
+
+  public String getContentType() {
+    return csv ? "text/csv;charset=UTF-8" : "application/x-ndjson;charset=UTF-8";
+  }
+
+  public String getFileExtension() {
+    return csv ? "csv" : "ndjson";
+  }
+
+  // Writes the entries of the node ordered by start time, returns the number of written rows
+  public int export(String nodeName, String sortOrder, String statusFilter, Writer writer) throws IOException {
+    AgentBuildHistoryStorage storage = AgentBuildHistoryStorage.get();
+    if (csv) {
+      writer.write(String.join(",", fields));
+      writer.write('\n');
+    }
+    int rows = 0;
+    AgentBuildHistoryStorage.HistoryCursor cursor = null;
+    while (true) {
+      List<AgentBuildHistoryStorage.HistoryEntry> entries = storage.queryAfter(nodeName, sortOrder, statusFilter, cursor, CHUNK_SIZE).entries();
+      for (AgentBuildHistoryStorage.HistoryEntry entry : entries) {
+        writeRow(entry, writer);
+        rows++;
+      }
+      writer.flush();
+      if (entries.size() < CHUNK_SIZE) {
+        return rows;
+      }
+      cursor = AgentBuildHistoryStorage.HistoryCursor.of(entries.get(entries.size() - 1));
+    }
+  }
+
+  private void writeRow(AgentBuildHistoryStorage.HistoryEntry entry, Writer writer) throws IOException {
+    Job<?, ?> job = JobCache.get(entry.jobName());
+    Run<?, ?> run = loadRuns && job != null ? job.getBuildByNumber(entry.buildNumber()) : null;
+    List<Object> values = new ArrayList<>(fields.size());
+    for (String field : fields) {
+      values.add(getValue(field, entry, job, run));
+    }
+    if (csv) {
+      List<String> cells = new ArrayList<>(values.size());
+      for (Object value : values) {
+        cells.add(value != null ? escapeCsv(value.toString()) : "");
+      }
+      writer.write(String.join(",", cells));
+    } else {
+      JSONObject json = new JSONObject();
+      for (int i = 0; i < fields.size(); i++) {
+        json.element(fields.get(i), values.get(i) != null ? values.get(i) : JSONNull.getInstance());
+      }
+      writer.write(json.toString());
+    }
+    writer.write('\n');
+  }
+
+  private static Object getValue(String field, AgentBuildHistoryStorage.HistoryEntry entry, Job<?, ?> job, Run<?, ?> run) {
+    Result result = entry.result();
+    return switch (field) {
+      case "job" -> entry.jobName();
+      case "number" -> entry.buildNumber();
+      case "startTime" -> entry.startTime();
+      case "result" -> result != null ? result.toString() : null;
+      case "url" -> job != null ? job.getUrl() + entry.buildNumber() + "/" : null;
+      case "displayName" -> run != null ? run.getDisplayName() : null;
+      case "duration" -> run != null && !run.isBuilding() ? run.getDuration() : null;
+      default -> null;
+    };
+  }
+
+  static String escapeCsv(String value) {
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+      return value;
+    }
+    return '"' + value.replace("\"", "\"\"") + '"';
+  }
+
+  static String normalizeFormat(String format) {
+    return format != null ? format.toLowerCase(Locale.ENGLISH) : "ndjson";
+  }
+}
@@ -0,0 +1,48 @@
+package io.jenkins.plugins.agent_build_history;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Periodically folds the journal of each node into its index files and migrates index files that are not stored in
+ * the configured format. Once a day all nodes are compacted, which moves old entries into segments, merges small
+ * segments and drops entries outside the retention window.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public class IndexCompactor extends AsyncPeriodicWork {
+
+  private static final long MAINTENANCE_PERIOD = TimeUnit.DAYS.toMillis(1);
+
+  private long lastMaintenance;
+
+  public IndexCompactor() {
+    super("Agent build history compaction");
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return TimeUnit.MINUTES.toMillis(10);
+  }
+
+  @Override
+  protected void execute(TaskListener listener) {
+    String storageDir = AgentBuildHistoryConfig.get().getStorageDir();
+    Set<String> nodeNames = new HashSet<>(BuildHistoryFileManager.getNodeNamesToCompact(storageDir));
+    long now = System.currentTimeMillis();
+    if (now - lastMaintenance >= MAINTENANCE_PERIOD) {
+      nodeNames.addAll(BuildHistoryFileManager.getAllSavedNodeNames(storageDir));
+      lastMaintenance = now;
+    }
+    for (String nodeName : nodeNames) {
+      BuildHistoryFileManager.compact(nodeName, storageDir);
+    }
+    listener.getLogger().println("Compacted history of " + nodeNames.size() + " nodes");
+  }
+}
@@ -0,0 +1,199 @@
+package io.jenkins.plugins.agent_build_history;
+
+import hudson.model.Result;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Append-only journal of changes to a node index file.
+ *
+ * <p>Instead of rewriting the index file of a node for every result update, deletion or rename, a small delta record
+ * is appended to {@code <node>_journal.txt}. Readers fold the journal onto the base file, and the compactor
+ * periodically rewrites the base file and truncates the journal.
+ *
+ * <p>Renaming a job only changes the {@link JobNameDictionary}, as records and index entries refer to jobs by id.
+ *
+ * <p>Every record carries the length of the base file at the time it was written. A record only applies to base
+ * lines that start before that watermark, so lines appended after a tombstone (e.g. a job that was deleted and
+ * recreated with the same name) are not affected by it.
+ */
+@Restricted(NoExternalUse.class)
+public class IndexJournal {
+
+  static final String RESULT = "R";
+  static final String DELETE_RUN = "D";
+  static final String DELETE_JOB = "J";
+  static final String RENAME_JOB = "M";
+
+  private static final String separator = BuildHistoryFileManager.separator;
+
+  private IndexJournal() {
+  }
+
+  static File getJournalFile(String nodeName, String storageDir) {
+    return new File(storageDir + "/" + nodeName + "_journal.txt");
+  }
+
+  static void append(File journalFile, String type, long watermark, String... fields) throws IOException {
+    StringBuilder record = new StringBuilder(type).append(separator).append(watermark);
+    for (String field : fields) {
+      record.append(separator).append(field);
+    }
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(journalFile, StandardCharsets.UTF_8, true))) {
+      writer.write(record.toString());
+      writer.newLine();
+    }
+  }
+
+  static List<String> readRecords(File journalFile) throws IOException {
+    if (!journalFile.exists()) {
+      return Collections.emptyList();
+    }
+    return Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Applies the journal records to the entries of the base file.
+   *
+   * @param base the entries of the base index file
+   * @param journal the journal records in the order they were written
+   * @param dictionary the job name dictionary of the storage directory
+   * @return the effective index entries
+   */
+  static NodeIndex fold(NodeIndex base, List<String> journal, JobNameDictionary dictionary) {
+    if (journal.isEmpty()) {
+      return base;
+    }
+    Map<Long, List<JournalRecord>> byRun = new HashMap<>();
+    Map<Integer, List<JournalRecord>> byJob = new HashMap<>();
+    int count = 0;
+    for (String line : journal) {
+      JournalRecord record = JournalRecord.parse(count, line, dictionary);
+      if (record == null) {
+        continue;
+      }
+      count++;
+      if (record.type.equals(RESULT) || record.type.equals(DELETE_RUN)) {
+        byRun.computeIfAbsent(NodeIndex.runKey(record.jobId, record.number), k -> new ArrayList<>()).add(record);
+      } else {
+        byJob.computeIfAbsent(record.jobId, k -> new ArrayList<>()).add(record);
+      }
+    }
+    if (count == 0) {
+      return base;
+    }
+
+    NodeIndex folded = new NodeIndex(base.size());
+    for (int i = 0; i < base.size(); i++) {
+      applyRecords(base, i, byRun, byJob, folded);
+    }
+    return folded;
+  }
+
+  /*
+   * Walks the records that concern the entry in journal order. Result updates and run deletions are looked up by
+   * job and build number, job deletions and renames by job only. A rename changes the job that subsequent records
+   * are matched against.
+   */
+  private static void applyRecords(NodeIndex base, int i, Map<Long, List<JournalRecord>> byRun, Map<Integer, List<JournalRecord>> byJob, NodeIndex folded) {
+    int jobId = base.getJobId(i);
+    int number = base.getNumber(i);
+    long offset = base.getOffset(i);
+    byte result = base.getResultCode(i);
+    int position = -1;
+    while (true) {
+      JournalRecord next = nextRecord(byRun.get(NodeIndex.runKey(jobId, number)), position, offset);
+      JournalRecord nextForJob = nextRecord(byJob.get(jobId), position, offset);
+      if (next == null || (nextForJob != null && nextForJob.index < next.index)) {
+        next = nextForJob;
+      }
+      if (next == null) {
+        break;
+      }
+      switch (next.type) {
+        case RESULT:
+          result = next.result;
+          break;
+        case DELETE_RUN:
+        case DELETE_JOB:
+          return;
+        case RENAME_JOB:
+          jobId = next.newJobId;
+          break;
+        default:
+      }
+      position = next.index;
+    }
+    folded.add(jobId, number, base.getStartTime(i), result, offset);
+  }
+
+  private static JournalRecord nextRecord(List<JournalRecord> records, int position, long offset) {
+    if (records == null) {
+      return null;
+    }
+    for (JournalRecord record : records) {
+      if (record.index > position && record.watermark > offset) {
+        return record;
+      }
+    }
+    return null;
+  }
+
+  /*
+   * type;watermark;#jobId[;args]
+   * Result updates have the build number and the result as args, run deletions the build number and job deletions
+   * have no args. Renames are only written by older versions, they refer to jobs by name and have the new job name
+   * as arg.
+   */
+  private record JournalRecord(int index, String type, long watermark, int jobId, int number, byte result, int newJobId) {
+
+    static JournalRecord parse(int index, String line, JobNameDictionary dictionary) {
+      String[] parts = line.split(separator);
+      if (parts.length < 3) {
+        return null;
+      }
+      int jobId = dictionary.fromField(parts[2], false);
+      if (jobId < 0) {
+        // the job is not part of any index
+        return null;
+      }
+      try {
+        long watermark = Long.parseLong(parts[1]);
+        switch (parts[0]) {
+          case RESULT:
+            if (parts.length < 5) {
+              return null;
+            }
+            return new JournalRecord(index, RESULT, watermark, jobId, Integer.parseInt(parts[3]), NodeIndex.toCode(Result.fromString(parts[4])), -1);
+          case DELETE_RUN:
+            if (parts.length < 4) {
+              return null;
+            }
+            return new JournalRecord(index, DELETE_RUN, watermark, jobId, Integer.parseInt(parts[3]), NodeIndex.NO_RESULT, -1);
+          case DELETE_JOB:
+            return new JournalRecord(index, DELETE_JOB, watermark, jobId, 0, NodeIndex.NO_RESULT, -1);
+          case RENAME_JOB:
+            if (parts.length < 4) {
+              return null;
+            }
+            return new JournalRecord(index, RENAME_JOB, watermark, jobId, 0, NodeIndex.NO_RESULT, dictionary.getId(parts[3]));
+          default:
+            return null;
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+}
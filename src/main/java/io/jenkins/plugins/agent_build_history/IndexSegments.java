@@ -0,0 +1,139 @@
+package io.jenkins.plugins.agent_build_history;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Time segments of a node index.
+ *
+ * <p>Entries that started before the current week are moved by compaction from the base index file into segment
+ * files named {@code <node>_segment_<start>.txt} or {@code .bin}, where start is the beginning of the first week the
+ * segment covers. A segment covers all entries up to the start of the next segment, small adjacent weeks are merged
+ * into one segment. Segments are only written by compaction, so all their entries are older than any journal record.
+ */
+@Restricted(NoExternalUse.class)
+public class IndexSegments {
+
+  static final long SEGMENT_MILLIS = TimeUnit.DAYS.toMillis(7);
+  // Adjacent weeks are merged until a segment has at least this many entries
+  static final int MIN_SEGMENT_SIZE = 1000;
+  private static final Pattern SEGMENT_NAME = Pattern.compile("(.+)_segment_(-?\\d+)\\.(txt|bin)");
+
+  private IndexSegments() {
+  }
+
+  static long segmentStart(long time) {
+    return Math.floorDiv(time, SEGMENT_MILLIS) * SEGMENT_MILLIS;
+  }
+
+  static File getSegmentFile(String nodeName, String storageDir, long start, boolean binary) {
+    return new File(storageDir + "/" + nodeName + "_segment_" + start + (binary ? ".bin" : ".txt"));
+  }
+
+  // Returns the node name of a segment file name or null if it is not a segment file
+  static String getNodeName(String fileName) {
+    Matcher matcher = SEGMENT_NAME.matcher(fileName);
+    return matcher.matches() ? matcher.group(1) : null;
+  }
+
+  // Returns all segment files of the node in both formats
+  static List<File> getFiles(String nodeName, String storageDir) {
+    List<File> segmentFiles = new ArrayList<>();
+    File[] files = new File(storageDir).listFiles((dir, name) -> name.startsWith(nodeName + "_segment_"));
+    if (files != null) {
+      for (File file : files) {
+        if (nodeName.equals(getNodeName(file.getName()))) {
+          segmentFiles.add(file);
+        }
+      }
+    }
+    return segmentFiles;
+  }
+
+  // Returns the segment files of the node by their start time
+  static TreeMap<Long, File> list(String nodeName, String storageDir) {
+    TreeMap<Long, File> segments = new TreeMap<>();
+    for (File file : getFiles(nodeName, storageDir)) {
+      Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+      if (matcher.matches()) {
+        // after an interrupted migration a segment might exist in both formats with the same content
+        segments.putIfAbsent(Long.parseLong(matcher.group(2)), file);
+      }
+    }
+    return segments;
+  }
+
+  // Returns the segments that might contain entries started between from and to
+  static TreeMap<Long, File> list(String nodeName, String storageDir, long from, long to) {
+    TreeMap<Long, File> segments = list(nodeName, storageDir);
+    Long first = segments.floorKey(from);
+    return new TreeMap<>(segments.subMap(first != null ? first : Long.MIN_VALUE, true, to, true));
+  }
+
+  static NodeIndex read(File file, JobNameDictionary dictionary) throws IOException {
+    if (file.getName().endsWith(".bin")) {
+      return BinaryIndexFile.read(file);
+    }
+    return NodeIndex.parse(Files.readAllBytes(file.toPath()), dictionary);
+  }
+
+  /*
+   * Splits the entries that started before the given time into segments. Each week gets its own segment unless it
+   * has fewer than MIN_SEGMENT_SIZE entries, in which case the following weeks are merged into it.
+   */
+  static TreeMap<Long, NodeIndex> split(NodeIndex index, long before) {
+    TreeMap<Long, NodeIndex> weeks = new TreeMap<>();
+    for (int i = 0; i < index.size(); i++) {
+      long startTime = index.getStartTime(i);
+      if (startTime < before) {
+        weeks.computeIfAbsent(segmentStart(startTime), k -> new NodeIndex())
+            .add(index.getJobId(i), index.getNumber(i), startTime, index.getResultCode(i), -1);
+      }
+    }
+    TreeMap<Long, NodeIndex> segments = new TreeMap<>();
+    NodeIndex current = null;
+    for (Map.Entry<Long, NodeIndex> week : weeks.entrySet()) {
+      if (current == null || current.size() >= MIN_SEGMENT_SIZE) {
+        current = new NodeIndex(week.getValue().size());
+        segments.put(week.getKey(), current);
+      }
+      current.addAll(week.getValue(), -1L);
+    }
+    return segments;
+  }
+
+  static byte[] toBytes(NodeIndex index, boolean binary) throws IOException {
+    if (binary) {
+      return BinaryIndexFile.toBytes(index);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < index.size(); i++) {
+      out.write((index.toFileLine(i) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+    }
+    return out.toByteArray();
+  }
+
+  // Replaces the file with the content, files that already have the same content are not written again
+  static void write(File file, byte[] content) throws IOException {
+    if (file.exists() && file.length() == content.length && Arrays.equals(Files.readAllBytes(file.toPath()), content)) {
+      return;
+    }
+    File tmpFile = new File(file.getPath() + ".tmp");
+    Files.write(tmpFile.toPath(), content);
+    Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
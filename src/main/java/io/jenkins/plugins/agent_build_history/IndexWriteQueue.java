@@ -0,0 +1,99 @@
+package io.jenkins.plugins.agent_build_history;
+
+import hudson.init.Terminator;
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.AtmostOneTaskExecutor;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Write-behind queue for new node index entries.
+ *
+ * <p>Runs that start on a node are queued and written by a single writer that groups the pending entries per node
+ * and appends them with one write per node. When the queue is full the entry is written synchronously. Pending
+ * entries are flushed before changes that depend on them and on shutdown. Reads of a node only flush when entries of
+ * that node are pending, which is checked without locking.
+ */
+@Restricted(NoExternalUse.class)
+public class IndexWriteQueue {
+
+  private static final Logger LOGGER = Logger.getLogger(IndexWriteQueue.class.getName());
+  private static final int CAPACITY = 10000;
+  private static final int MAX_BATCH_SIZE = 1000;
+
+  private static final BlockingQueue<PendingRun> queue = new LinkedBlockingQueue<>(CAPACITY);
+  private static final AtmostOneTaskExecutor<Void> writer = new AtmostOneTaskExecutor<>(IndexWriteQueue::drain);
+
+  // Number of queued or not yet written entries per node, nodes without pending entries have no key
+  private static final Map<String, Integer> pendingByNode = new ConcurrentHashMap<>();
+
+  private record PendingRun(String nodeName, Run<?, ?> run) {}
+
+  private IndexWriteQueue() {
+  }
+
+  public static void add(String nodeName, Run<?, ?> run) {
+    pendingByNode.merge(nodeName, 1, Integer::sum);
+    if (!queue.offer(new PendingRun(nodeName, run))) {
+      written(nodeName, 1);
+      LOGGER.log(Level.FINE, () -> "Write queue is full, writing " + run.getFullDisplayName() + " directly");
+      AgentBuildHistoryStorage.get().addRuns(nodeName, List.of(run));
+      return;
+    }
+    writer.submit();
+  }
+
+  private static void written(String nodeName, int count) {
+    pendingByNode.computeIfPresent(nodeName, (k, pending) -> pending > count ? pending - count : null);
+  }
+
+  // Writes all pending entries in the calling thread. Always goes through drain(), even with an empty queue, as the
+  // writer might have taken a batch that it has not written yet and drain() waits for it.
+  public static void flush() {
+    drain();
+  }
+
+  // Writes the pending entries if there are any for the node, entries the writer has taken are pending until written
+  public static void flush(String nodeName) {
+    if (pendingByNode.containsKey(nodeName)) {
+      drain();
+    }
+  }
+
+  @Terminator
+  public static void flushOnShutdown() {
+    flush();
+  }
+
+  private static synchronized Void drain() {
+    List<PendingRun> batch = new ArrayList<>();
+    while (queue.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+      Map<String, List<Run<?, ?>>> runsByNode = new LinkedHashMap<>();
+      for (PendingRun pending : batch) {
+        runsByNode.computeIfAbsent(pending.nodeName, k -> new ArrayList<>()).add(pending.run);
+      }
+      AgentBuildHistoryStorage storage = AgentBuildHistoryStorage.get();
+      for (Map.Entry<String, List<Run<?, ?>>> entry : runsByNode.entrySet()) {
+        try {
+          storage.addRuns(entry.getKey(), entry.getValue());
+        } catch (RuntimeException e) {
+          LOGGER.log(Level.WARNING, "Failed to write index entries for node " + entry.getKey(), e);
+        } finally {
+          written(entry.getKey(), entry.getValue().size());
+        }
+      }
+      LOGGER.log(Level.FINER, "Wrote {0} index entries for {1} nodes", new Object[] {batch.size(), runsByNode.size()});
+      batch.clear();
+    }
+    return null;
+  }
+}
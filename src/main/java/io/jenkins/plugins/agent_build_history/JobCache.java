@@ -0,0 +1,49 @@
+package io.jenkins.plugins.agent_build_history;
+
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import jenkins.model.Jenkins;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Cache of the jobs by full name, including names that don't resolve to a job.
+ *
+ * <p>Resolving a full name walks the folder hierarchy. Jobs are resolved as SYSTEM and cached for all users, the
+ * permission of the current user is checked on every lookup. Entries are invalidated by the item listener when
+ * items are created, renamed, moved or deleted.
+ */
+@Restricted(NoExternalUse.class)
+public class JobCache {
+
+  private static final Map<String, Optional<Job<?, ?>>> jobs = new ConcurrentHashMap<>();
+
+  private JobCache() {
+  }
+
+  // Returns the job if it exists and the current user may read it
+  static Job<?, ?> get(String fullName) {
+    Job<?, ?> job = jobs.computeIfAbsent(fullName, JobCache::resolve).orElse(null);
+    return job != null && job.hasPermission(Item.READ) ? job : null;
+  }
+
+  private static Optional<Job<?, ?>> resolve(String fullName) {
+    try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+      return Optional.ofNullable(Jenkins.get().getItemByFullName(fullName, Job.class));
+    }
+  }
+
+  // Invalidates the item and everything below it, e.g. the jobs of a folder
+  static void invalidate(String fullName) {
+    jobs.keySet().removeIf(name -> name.equals(fullName) || name.startsWith(fullName + "/"));
+  }
+
+  static void clear() {
+    jobs.clear();
+  }
+}
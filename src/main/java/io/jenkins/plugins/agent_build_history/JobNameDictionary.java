@@ -0,0 +1,148 @@
+package io.jenkins.plugins.agent_build_history;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Maps full job names to small integer ids that are shared by all node indexes of a storage directory.
+ *
+ * <p>The dictionary is persisted in {@code job_names.txt} as lines of the format {@code id;name}. New names are
+ * appended, ids are never reused. Renaming a job appends its id with the new name, the last line of an id wins.
+ *
+ * <p>Index files and journal records refer to jobs by id in the form {@code #id}. Older files that contain the full
+ * job name are still read.
+ */
+@Restricted(NoExternalUse.class)
+public class JobNameDictionary {
+
+  private static final Logger LOGGER = Logger.getLogger(JobNameDictionary.class.getName());
+  private static final Map<String, JobNameDictionary> dictionaries = new ConcurrentHashMap<>();
+  private static final String ID_PREFIX = "#";
+
+  private final File file;
+  private final Map<String, Integer> ids = new HashMap<>();
+  private final List<String> names = new ArrayList<>();
+  // incremented on every rename, as the order of the names changes
+  private int version;
+
+  private JobNameDictionary(File file) {
+    this.file = file;
+    load();
+  }
+
+  public static JobNameDictionary get(String storageDir) {
+    return dictionaries.computeIfAbsent(storageDir, dir -> new JobNameDictionary(new File(dir + "/job_names.txt")));
+  }
+
+  private void load() {
+    if (!file.exists()) {
+      return;
+    }
+    try {
+      for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+        int pos = line.indexOf(BuildHistoryFileManager.separator);
+        if (pos <= 0) {
+          continue;
+        }
+        int id = Integer.parseInt(line.substring(0, pos));
+        String name = line.substring(pos + 1);
+        while (names.size() <= id) {
+          names.add(null);
+        }
+        String oldName = names.set(id, name);
+        if (oldName != null) {
+          ids.remove(oldName, id);
+        }
+        ids.put(name, id);
+      }
+    } catch (IOException | NumberFormatException e) {
+      LOGGER.log(Level.WARNING, "Failed to read job name dictionary " + file, e);
+    }
+  }
+
+  // Returns the id of the job name, a new id is assigned when the name is not known yet
+  public synchronized int getId(String name) {
+    Integer id = ids.get(name);
+    if (id != null) {
+      return id;
+    }
+    int newId = names.size();
+    names.add(name);
+    ids.put(name, newId);
+    append(newId, name);
+    return newId;
+  }
+
+  // Gives the id of the old name to the new name, returns the id or -1 when the old name is not known
+  public synchronized int rename(String oldName, String newName) {
+    Integer id = ids.remove(oldName);
+    if (id == null) {
+      return -1;
+    }
+    names.set(id, newName);
+    ids.put(newName, id);
+    version++;
+    append(id, newName);
+    return id;
+  }
+
+  private void append(int id, String name) {
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, StandardCharsets.UTF_8, true))) {
+      writer.write(id + BuildHistoryFileManager.separator + name);
+      writer.newLine();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to update job name dictionary " + file, e);
+    }
+  }
+
+  // Returns the id of the job name or -1 when the name is not known
+  public synchronized int lookup(String name) {
+    Integer id = ids.get(name);
+    return id != null ? id : -1;
+  }
+
+  public synchronized int getVersion() {
+    return version;
+  }
+
+  public synchronized String getName(int id) {
+    return id >= 0 && id < names.size() ? names.get(id) : null;
+  }
+
+  // Formats the id as it is stored in index files and journal records
+  static String toField(int id) {
+    return ID_PREFIX + id;
+  }
+
+  static boolean isIdField(String field) {
+    return field.startsWith(ID_PREFIX);
+  }
+
+  /*
+   * Returns the id of a job field of an index file or journal record, which is either an id or a job name in files
+   * written by older versions. Unknown job names get a new id.
+   */
+  int fromField(String field, boolean assign) {
+    if (isIdField(field)) {
+      try {
+        return Integer.parseInt(field.substring(ID_PREFIX.length()));
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+    return assign ? getId(field) : lookup(field);
+  }
+}
@@ -0,0 +1,155 @@
+package io.jenkins.plugins.agent_build_history;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Reverse index from a job to the nodes whose index contains runs of the job.
+ *
+ * <p>The index is persisted in {@code job_nodes.txt} as lines of the format {@code job;node}. New pairs are appended,
+ * removing a job or node rewrites the file. When the file does not exist yet it is built once from the node indexes.
+ * The index may contain nodes that no longer have runs of a job, it is only used to skip nodes that never ran it.
+ */
+@Restricted(NoExternalUse.class)
+public class JobNodeIndex {
+
+  private static final Logger LOGGER = Logger.getLogger(JobNodeIndex.class.getName());
+  private static final Map<String, JobNodeIndex> indexes = new ConcurrentHashMap<>();
+
+  private final String storageDir;
+  private final File file;
+  private final Map<String, Set<String>> jobNodes = new HashMap<>();
+
+  private JobNodeIndex(String storageDir) {
+    this.storageDir = storageDir;
+    this.file = new File(storageDir + "/job_nodes.txt");
+  }
+
+  public static JobNodeIndex get(String storageDir) {
+    return indexes.computeIfAbsent(storageDir, dir -> {
+      JobNodeIndex index = new JobNodeIndex(dir);
+      index.load();
+      return index;
+    });
+  }
+
+  private void load() {
+    if (file.exists()) {
+      try {
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+          int pos = line.lastIndexOf(BuildHistoryFileManager.separator);
+          if (pos > 0) {
+            jobNodes.computeIfAbsent(line.substring(0, pos), k -> new HashSet<>()).add(line.substring(pos + 1));
+          }
+        }
+        return;
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to read job node index " + file + ", rebuilding it", e);
+        jobNodes.clear();
+      }
+    }
+    // Build the index from the existing node indexes
+    JobNameDictionary dictionary = JobNameDictionary.get(storageDir);
+    for (String nodeName : BuildHistoryFileManager.getAllSavedNodeNames(storageDir)) {
+      NodeIndex index = BuildHistoryFileManager.readIndex(nodeName, storageDir);
+      for (int i = 0; i < index.size(); i++) {
+        String jobName = dictionary.getName(index.getJobId(i));
+        if (jobName != null) {
+          jobNodes.computeIfAbsent(jobName, k -> new HashSet<>()).add(nodeName);
+        }
+      }
+    }
+    save();
+  }
+
+  // Returns the nodes that might have runs of the job
+  public synchronized Set<String> getNodes(String jobName) {
+    Set<String> nodes = jobNodes.get(jobName);
+    return nodes != null ? new HashSet<>(nodes) : Collections.emptySet();
+  }
+
+  public synchronized void add(String jobName, String nodeName) {
+    if (!jobNodes.computeIfAbsent(jobName, k -> new HashSet<>()).add(nodeName)) {
+      return;
+    }
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, StandardCharsets.UTF_8, true))) {
+      writer.write(jobName + BuildHistoryFileManager.separator + nodeName);
+      writer.newLine();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to update job node index " + file, e);
+    }
+  }
+
+  public synchronized void removeJob(String jobName) {
+    if (jobNodes.remove(jobName) != null) {
+      save();
+    }
+  }
+
+  public synchronized void renameJob(String oldFullName, String newFullName) {
+    Set<String> nodes = jobNodes.remove(oldFullName);
+    if (nodes != null) {
+      jobNodes.computeIfAbsent(newFullName, k -> new HashSet<>()).addAll(nodes);
+      save();
+    }
+  }
+
+  public synchronized void removeNode(String nodeName) {
+    boolean changed = false;
+    for (Set<String> nodes : jobNodes.values()) {
+      changed |= nodes.remove(nodeName);
+    }
+    if (changed) {
+      jobNodes.values().removeIf(Set::isEmpty);
+      save();
+    }
+  }
+
+  public synchronized void renameNode(String oldNodeName, String newNodeName) {
+    boolean changed = false;
+    for (Set<String> nodes : jobNodes.values()) {
+      if (nodes.remove(oldNodeName)) {
+        nodes.add(newNodeName);
+        changed = true;
+      }
+    }
+    if (changed) {
+      save();
+    }
+  }
+
+  private void save() {
+    File tmpFile = new File(storageDir + "/job_nodes.tmp");
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmpFile, StandardCharsets.UTF_8))) {
+      for (Map.Entry<String, Set<String>> entry : jobNodes.entrySet()) {
+        for (String nodeName : entry.getValue()) {
+          writer.write(entry.getKey() + BuildHistoryFileManager.separator + nodeName);
+          writer.newLine();
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to write job node index " + file, e);
+      return;
+    }
+    try {
+      Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to replace job node index " + file, e);
+    }
+  }
+}
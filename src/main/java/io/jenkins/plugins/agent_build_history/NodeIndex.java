@@ -0,0 +1,584 @@
+package io.jenkins.plugins.agent_build_history;
+
+import hudson.model.Result;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntPredicate;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Parsed entries of a node index, stored column wise so that large histories don't need an object per entry.
+ *
+ * <p>Job names are stored as ids of the {@link JobNameDictionary}, results as a byte code where {@code 0} means that
+ * no result was recorded yet. The offset of each entry is its position in the base file and is used when folding
+ * the journal, entries of segments have the offset {@code -1}.
+ *
+ * <p>Sort permutations by start time and by job and build number are built on first use and kept up to date when
+ * single entries are added or entries are removed, so sorted pages don't need to sort the entries again. Bulk adds
+ * drop them.
+ */
+@Restricted(NoExternalUse.class)
+public class NodeIndex {
+
+  static final byte NO_RESULT = 0;
+  private static final Result[] RESULTS = {Result.SUCCESS, Result.UNSTABLE, Result.FAILURE, Result.NOT_BUILT, Result.ABORTED};
+
+  private int size;
+  private int[] jobIds;
+  private int[] numbers;
+  private long[] startTimes;
+  private byte[] results;
+  private long[] offsets;
+  // number of entries per job id and result code, maintained with the entries, so counts can skip hidden jobs
+  private final Map<Integer, int[]> resultCounts = new HashMap<>();
+  // positions of the runs, built on first lookup
+  private RunKeySet keys;
+  // positions of the entries in ascending order, built on first use, valid up to size
+  private volatile int[] startTimeOrder;
+  private volatile int[] buildOrder;
+  // rank of the job ids by name for buildOrder and the dictionary version they were computed for
+  private volatile int[] jobRanks;
+  private volatile int jobRanksVersion;
+
+  public NodeIndex() {
+    this(16);
+  }
+
+  public NodeIndex(int capacity) {
+    capacity = Math.max(capacity, 16);
+    jobIds = new int[capacity];
+    numbers = new int[capacity];
+    startTimes = new long[capacity];
+    results = new byte[capacity];
+    offsets = new long[capacity];
+  }
+
+  public void add(int jobId, int number, long startTime, byte result, long offset) {
+    if (size == jobIds.length) {
+      int capacity = size + (size >> 1);
+      jobIds = Arrays.copyOf(jobIds, capacity);
+      numbers = Arrays.copyOf(numbers, capacity);
+      startTimes = Arrays.copyOf(startTimes, capacity);
+      results = Arrays.copyOf(results, capacity);
+      offsets = Arrays.copyOf(offsets, capacity);
+    }
+    jobIds[size] = jobId;
+    numbers[size] = number;
+    startTimes[size] = startTime;
+    results[size] = result;
+    offsets[size] = offset;
+    getResultCounts(jobId)[countSlot(result)]++;
+    if (startTimeOrder != null) {
+      startTimeOrder = insert(startTimeOrder, size, this::compareStartTime);
+    }
+    if (buildOrder != null) {
+      int[] ranks = jobRanks;
+      buildOrder = ranks != null && jobId < ranks.length && ranks[jobId] >= 0 ? insert(buildOrder, size, (a, b) -> compareBuild(ranks, a, b)) : null;
+    }
+    if (keys != null) {
+      keys.add(runKey(jobId, number), size);
+    }
+    size++;
+  }
+
+  // Inserts the entry at position i, the last entry, into the sorted order of the entries before it
+  private int[] insert(int[] order, int i, IntBinaryOperator comparator) {
+    if (order.length <= i) {
+      order = Arrays.copyOf(order, jobIds.length);
+    }
+    int low = 0;
+    int high = i;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (comparator.applyAsInt(order[mid], i) <= 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    System.arraycopy(order, low, order, low + 1, i - low);
+    order[low] = i;
+    return order;
+  }
+
+  /*
+   * Adds all entries of the other index, with the given offset or their own offset if it is null. Inserting many
+   * entries into the sort permutations would move most of them once per entry, so they are dropped and sorted again on
+   * next use.
+   */
+  void addAll(NodeIndex other, Long offset) {
+    if (other.size > 1) {
+      startTimeOrder = null;
+      buildOrder = null;
+    }
+    for (int i = 0; i < other.size; i++) {
+      add(other.jobIds[i], other.numbers[i], other.startTimes[i], other.results[i], offset != null ? offset : other.offsets[i]);
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int getJobId(int i) {
+    return jobIds[i];
+  }
+
+  public int getNumber(int i) {
+    return numbers[i];
+  }
+
+  public long getStartTime(int i) {
+    return startTimes[i];
+  }
+
+  public byte getResultCode(int i) {
+    return results[i];
+  }
+
+  public Result getResult(int i) {
+    return toResult(results[i]);
+  }
+
+  // Returns the number of entries with the result, null counts the entries without result
+  public int getResultCount(Result result) {
+    return getResultCount(result, jobId -> true);
+  }
+
+  // Returns the number of entries of the accepted job ids with the result, null counts the entries without result
+  public int getResultCount(Result result, IntPredicate jobFilter) {
+    int slot = toCode(result);
+    int count = 0;
+    for (Map.Entry<Integer, int[]> entry : resultCounts.entrySet()) {
+      if (entry.getValue()[slot] > 0 && jobFilter.test(entry.getKey())) {
+        count += entry.getValue()[slot];
+      }
+    }
+    return count;
+  }
+
+  // Returns the number of entries of the accepted job ids
+  public int size(IntPredicate jobFilter) {
+    int count = 0;
+    for (Map.Entry<Integer, int[]> entry : resultCounts.entrySet()) {
+      int jobSize = Arrays.stream(entry.getValue()).sum();
+      if (jobSize > 0 && jobFilter.test(entry.getKey())) {
+        count += jobSize;
+      }
+    }
+    return count;
+  }
+
+  private int[] getResultCounts(int jobId) {
+    return resultCounts.computeIfAbsent(jobId, k -> new int[RESULTS.length + 1]);
+  }
+
+  private static int countSlot(byte code) {
+    return code > 0 && code <= RESULTS.length ? code : NO_RESULT;
+  }
+
+  long getOffset(int i) {
+    return offsets[i];
+  }
+
+  static long runKey(int jobId, int number) {
+    return ((long) jobId << 32) | (number & 0xffffffffL);
+  }
+
+  // Checks in constant time whether the index contains the run
+  boolean contains(int jobId, int number) {
+    return indexOf(jobId, number) >= 0;
+  }
+
+  // Returns the position of the run or -1
+  private int indexOf(int jobId, int number) {
+    if (keys == null) {
+      RunKeySet newKeys = new RunKeySet(size);
+      for (int i = 0; i < size; i++) {
+        newKeys.add(runKey(jobIds[i], numbers[i]), i);
+      }
+      keys = newKeys;
+    }
+    return keys.get(runKey(jobId, number));
+  }
+
+  void setResult(int jobId, int number, byte result) {
+    int i = indexOf(jobId, number);
+    if (i >= 0) {
+      int[] counts = getResultCounts(jobId);
+      counts[countSlot(results[i])]--;
+      counts[countSlot(result)]++;
+      results[i] = result;
+    }
+  }
+
+  void remove(int jobId, int number) {
+    removeIf(i -> jobIds[i] == jobId && numbers[i] == number);
+  }
+
+  void removeJob(int jobId) {
+    removeIf(i -> jobIds[i] == jobId);
+  }
+
+  // Removes all entries that did not start between from and to
+  void retainStartTimes(long from, long to) {
+    removeIf(i -> startTimes[i] < from || startTimes[i] > to);
+  }
+
+  private void removeIf(IntPredicate filter) {
+    keys = null;
+    int[] positions = new int[size];
+    int target = 0;
+    for (int i = 0; i < size; i++) {
+      if (filter.test(i)) {
+        positions[i] = -1;
+        getResultCounts(jobIds[i])[countSlot(results[i])]--;
+        continue;
+      }
+      positions[i] = target;
+      if (target != i) {
+        jobIds[target] = jobIds[i];
+        numbers[target] = numbers[i];
+        startTimes[target] = startTimes[i];
+        results[target] = results[i];
+        offsets[target] = offsets[i];
+      }
+      target++;
+    }
+    if (target != size) {
+      resultCounts.values().removeIf(counts -> Arrays.stream(counts).allMatch(count -> count == 0));
+      startTimeOrder = remap(startTimeOrder, positions);
+      buildOrder = remap(buildOrder, positions);
+    }
+    size = target;
+  }
+
+  // Drops removed entries from the order and updates the positions of the remaining ones
+  private int[] remap(int[] order, int[] positions) {
+    if (order == null) {
+      return null;
+    }
+    int target = 0;
+    for (int k = 0; k < size; k++) {
+      int position = positions[order[k]];
+      if (position >= 0) {
+        order[target++] = position;
+      }
+    }
+    return order;
+  }
+
+  /*
+   * Returns the positions of the entries in ascending order of the sort column, startTime or build (job name and build
+   * number), or null for other columns. Only the first size() positions are valid. Callers must hold the node lock.
+   */
+  int[] getOrder(String sortColumn, JobNameDictionary dictionary) {
+    if ("startTime".equals(sortColumn)) {
+      int[] order = startTimeOrder;
+      if (order == null) {
+        order = sortedPositions(this::compareStartTime);
+        startTimeOrder = order;
+      }
+      return order;
+    }
+    if ("build".equals(sortColumn)) {
+      int version = dictionary.getVersion();
+      int[] order = buildOrder;
+      if (order == null || jobRanks == null || jobRanksVersion != version) {
+        int[] ranks = computeJobRanks(dictionary);
+        order = sortedPositions((a, b) -> compareBuild(ranks, a, b));
+        jobRanks = ranks;
+        jobRanksVersion = version;
+        buildOrder = order;
+      }
+      return order;
+    }
+    return null;
+  }
+
+  // Orders by start time, entries with the same start time by job id and build number, so the order is stable
+  private int compareStartTime(int a, int b) {
+    return compareStartTime(a, startTimes[b], jobIds[b], numbers[b]);
+  }
+
+  private int compareStartTime(int i, long startTime, int jobId, int number) {
+    int comparison = Long.compare(startTimes[i], startTime);
+    if (comparison == 0) {
+      comparison = Integer.compare(jobIds[i], jobId);
+    }
+    return comparison != 0 ? comparison : Integer.compare(numbers[i], number);
+  }
+
+  /*
+   * Returns the position in the start time order where iteration continues after the given entry, which doesn't
+   * need to exist anymore. Ascending this is the first entry after it, descending the last entry before it.
+   */
+  int seekStartTime(long startTime, int jobId, int number, boolean descending) {
+    int[] order = getOrder("startTime", null);
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      int comparison = compareStartTime(order[mid], startTime, jobId, number);
+      if (comparison < 0 || (comparison == 0 && !descending)) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return descending ? low - 1 : low;
+  }
+
+  private int compareBuild(int[] ranks, int a, int b) {
+    int comparison = Integer.compare(ranks[jobIds[a]], ranks[jobIds[b]]);
+    // Only compare build numbers if the job names are the same
+    return comparison != 0 ? comparison : Integer.compare(numbers[a], numbers[b]);
+  }
+
+  // Ranks the job ids of the entries by job name, ids that don't occur have the rank -1
+  private int[] computeJobRanks(JobNameDictionary dictionary) {
+    int maxId = -1;
+    for (int i = 0; i < size; i++) {
+      maxId = Math.max(maxId, jobIds[i]);
+    }
+    int[] ranks = new int[maxId + 1];
+    Arrays.fill(ranks, -1);
+    List<String> names = new ArrayList<>();
+    Map<String, List<Integer>> idsByName = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      int jobId = jobIds[i];
+      if (ranks[jobId] < 0) {
+        ranks[jobId] = 0;
+        String name = String.valueOf(dictionary.getName(jobId));
+        if (!idsByName.containsKey(name)) {
+          names.add(name);
+        }
+        idsByName.computeIfAbsent(name, k -> new ArrayList<>()).add(jobId);
+      }
+    }
+    Collections.sort(names);
+    for (int rank = 0; rank < names.size(); rank++) {
+      for (int jobId : idsByName.get(names.get(rank))) {
+        ranks[jobId] = rank;
+      }
+    }
+    return ranks;
+  }
+
+  // Positions of all entries in a stable order
+  private int[] sortedPositions(IntBinaryOperator comparator) {
+    int[] positions = new int[size];
+    for (int i = 0; i < size; i++) {
+      positions[i] = i;
+    }
+    return sort(positions, size, comparator);
+  }
+
+  // Stable bottom-up merge sort of the first length positions, returns the sorted array
+  private static int[] sort(int[] positions, int length, IntBinaryOperator comparator) {
+    int[] source = positions;
+    int[] target = new int[length];
+    for (int width = 1; width < length; width <<= 1) {
+      for (int low = 0; low < length; low += width << 1) {
+        int mid = Math.min(low + width, length);
+        int high = Math.min(low + (width << 1), length);
+        int left = low;
+        int right = mid;
+        int k = low;
+        while (left < mid && right < high) {
+          target[k++] = comparator.applyAsInt(source[right], source[left]) < 0 ? source[right++] : source[left++];
+        }
+        while (left < mid) {
+          target[k++] = source[left++];
+        }
+        while (right < high) {
+          target[k++] = source[right++];
+        }
+      }
+      int[] swap = source;
+      source = target;
+      target = swap;
+    }
+    return source;
+  }
+
+  // Checks whether the sort permutation of the column is available without sorting
+  boolean hasOrder(String sortColumn, JobNameDictionary dictionary) {
+    if ("startTime".equals(sortColumn)) {
+      return startTimeOrder != null;
+    }
+    if ("build".equals(sortColumn)) {
+      return buildOrder != null && jobRanks != null && jobRanksVersion == dictionary.getVersion();
+    }
+    return true;
+  }
+
+  /*
+   * Returns the positions of the first k entries that match the filter in the order of the sort column without
+   * sorting all entries. A bounded heap keeps the best k positions seen so far, so this takes O(n log k). The filter
+   * is called for every entry. Ties are ordered like in the sort permutation.
+   */
+  int[] selectFirst(String sortColumn, boolean descending, int k, IntPredicate filter, JobNameDictionary dictionary) {
+    IntBinaryOperator columnComparator;
+    if ("build".equals(sortColumn)) {
+      int[] ranks = computeJobRanks(dictionary);
+      columnComparator = (a, b) -> compareBuild(ranks, a, b);
+    } else {
+      columnComparator = this::compareStartTime;
+    }
+    IntBinaryOperator comparator = (a, b) -> {
+      int comparison = columnComparator.applyAsInt(a, b);
+      comparison = comparison != 0 ? comparison : Integer.compare(a, b);
+      return descending ? -comparison : comparison;
+    };
+    // max heap, the root is the last of the selected positions
+    int[] heap = new int[Math.max(0, Math.min(k, size))];
+    int count = 0;
+    for (int i = 0; i < size; i++) {
+      if (!filter.test(i) || heap.length == 0) {
+        continue;
+      }
+      if (count < heap.length) {
+        int child = count++;
+        heap[child] = i;
+        while (child > 0) {
+          int parent = (child - 1) >>> 1;
+          if (comparator.applyAsInt(heap[child], heap[parent]) <= 0) {
+            break;
+          }
+          int swap = heap[parent];
+          heap[parent] = heap[child];
+          heap[child] = swap;
+          child = parent;
+        }
+      } else if (comparator.applyAsInt(i, heap[0]) < 0) {
+        heap[0] = i;
+        int parent = 0;
+        while (true) {
+          int largest = parent;
+          int left = 2 * parent + 1;
+          int right = left + 1;
+          if (left < count && comparator.applyAsInt(heap[left], heap[largest]) > 0) {
+            largest = left;
+          }
+          if (right < count && comparator.applyAsInt(heap[right], heap[largest]) > 0) {
+            largest = right;
+          }
+          if (largest == parent) {
+            break;
+          }
+          int swap = heap[parent];
+          heap[parent] = heap[largest];
+          heap[largest] = swap;
+          parent = largest;
+        }
+      }
+    }
+    return Arrays.copyOf(sort(heap, count, comparator), count);
+  }
+
+  NodeIndex copy() {
+    NodeIndex copy = new NodeIndex(size);
+    System.arraycopy(jobIds, 0, copy.jobIds, 0, size);
+    System.arraycopy(numbers, 0, copy.numbers, 0, size);
+    System.arraycopy(startTimes, 0, copy.startTimes, 0, size);
+    System.arraycopy(results, 0, copy.results, 0, size);
+    System.arraycopy(offsets, 0, copy.offsets, 0, size);
+    resultCounts.forEach((jobId, counts) -> copy.resultCounts.put(jobId, counts.clone()));
+    copy.size = size;
+    return copy;
+  }
+
+  // Approximate heap usage of the entries
+  long estimatedSize() {
+    int[] startTimeOrder = this.startTimeOrder;
+    int[] buildOrder = this.buildOrder;
+    return 64L + (long) jobIds.length * 29 + resultCounts.size() * 64L + (keys != null ? (long) size * 24 : 0)
+        + (startTimeOrder != null ? startTimeOrder.length * 4L : 0) + (buildOrder != null ? buildOrder.length * 4L : 0);
+  }
+
+  static byte toCode(Result result) {
+    if (result == null) {
+      return NO_RESULT;
+    }
+    for (int i = 0; i < RESULTS.length; i++) {
+      if (RESULTS[i] == result) {
+        return (byte) (i + 1);
+      }
+    }
+    return NO_RESULT;
+  }
+
+  static Result toResult(byte code) {
+    if (code <= 0 || code > RESULTS.length) {
+      return null;
+    }
+    return RESULTS[code - 1];
+  }
+
+  // Parses the content of a text index file, each line has the format #jobId;number;startTime[;result]
+  static NodeIndex parse(byte[] content, JobNameDictionary dictionary) {
+    return parse(content, dictionary, true);
+  }
+
+  // Parses index lines, job names that are not in the dictionary are only added to it when assign is set
+  static NodeIndex parse(byte[] content, JobNameDictionary dictionary, boolean assign) {
+    NodeIndex index = new NodeIndex(content.length / 48);
+    int start = 0;
+    while (start < content.length) {
+      int end = start;
+      while (end < content.length && content[end] != '\n') {
+        end++;
+      }
+      int lineEnd = end > start && content[end - 1] == '\r' ? end - 1 : end;
+      if (lineEnd > start) {
+        String[] parts = new String(content, start, lineEnd - start, StandardCharsets.UTF_8).split(BuildHistoryFileManager.separator);
+        if (parts.length >= 3) {
+          try {
+            byte result = parts.length > 3 ? toCode(Result.fromString(parts[3])) : NO_RESULT;
+            int jobId = dictionary.fromField(parts[0], assign);
+            if (jobId >= 0) {
+              index.add(jobId, Integer.parseInt(parts[1]), Long.parseLong(parts[2]), result, start);
+            }
+          } catch (NumberFormatException e) {
+            // skip corrupt line
+          }
+        }
+      }
+      start = end + 1;
+    }
+    return index;
+  }
+
+  // Formats the entries as lines of the text index format
+  List<String> toLines(JobNameDictionary dictionary) {
+    List<String> lines = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      lines.add(toLine(i, dictionary));
+    }
+    return lines;
+  }
+
+  String toLine(int i, JobNameDictionary dictionary) {
+    return toLine(i, dictionary.getName(jobIds[i]));
+  }
+
+  // Formats the entry as it is stored in a text index file
+  String toFileLine(int i) {
+    return toLine(i, JobNameDictionary.toField(jobIds[i]));
+  }
+
+  private String toLine(int i, String job) {
+    String separator = BuildHistoryFileManager.separator;
+    String line = job + separator + numbers[i] + separator + startTimes[i];
+    Result result = toResult(results[i]);
+    return result != null ? line + separator + result : line;
+  }
+}
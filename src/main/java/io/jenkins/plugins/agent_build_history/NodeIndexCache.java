@@ -0,0 +1,176 @@
+package io.jenkins.plugins.agent_build_history;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Bounded LRU cache of parsed node indexes.
+ *
+ * <p>The cache is limited by the number of nodes and by the approximate heap usage of the cached entries, both
+ * configurable in {@link AgentBuildHistoryConfig}. Cached indexes are updated by {@link BuildHistoryFileManager}
+ * together with the files, so they never need to be re-read from disk. Callers must hold the node lock while
+ * accessing a cached index.
+ *
+ * <p>Lookups don't lock, they only record the time of the access. The total size is kept up to date as indexes are
+ * added, changed and removed, so only an eviction, when a limit is exceeded, takes a lock and orders the entries by
+ * their last access.
+ *
+ * <p>For each node a {@link RunBloomFilter} is kept as well, so runs can be added to nodes whose index is not cached
+ * without reading it.
+ */
+@Restricted(NoExternalUse.class)
+public class NodeIndexCache {
+
+  private static final Logger LOGGER = Logger.getLogger(NodeIndexCache.class.getName());
+  private static final Map<String, CachedIndex> cache = new ConcurrentHashMap<>();
+  // sum of the estimated sizes of the cached indexes
+  private static final AtomicLong totalBytes = new AtomicLong();
+  private static final Object evictionLock = new Object();
+  private static final int MAX_FILTERS = 10000;
+  // Bloom filters of the runs of each node, also kept for nodes whose index was evicted, guarded by itself
+  private static final Map<String, RunBloomFilter> filters = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, RunBloomFilter> eldest) {
+      return size() > MAX_FILTERS;
+    }
+  };
+
+  private static final class CachedIndex {
+    private final NodeIndex index;
+    private volatile long lastAccess = System.nanoTime();
+    // guarded by this, the size is only counted while the index is cached
+    private long bytes;
+    private boolean removed;
+
+    private CachedIndex(NodeIndex index) {
+      this.index = index;
+      this.bytes = index.estimatedSize();
+    }
+  }
+
+  private record Candidate(String key, CachedIndex cached, long lastAccess) {}
+
+  private NodeIndexCache() {
+  }
+
+  private static String key(String nodeName, String storageDir) {
+    return storageDir + "/" + nodeName;
+  }
+
+  static NodeIndex get(String nodeName, String storageDir) {
+    CachedIndex cached = cache.get(key(nodeName, storageDir));
+    if (cached == null) {
+      return null;
+    }
+    cached.lastAccess = System.nanoTime();
+    return cached.index;
+  }
+
+  static void put(String nodeName, String storageDir, NodeIndex index) {
+    CachedIndex cached = new CachedIndex(index);
+    totalBytes.addAndGet(cached.bytes);
+    detach(cache.put(key(nodeName, storageDir), cached));
+    evict();
+  }
+
+  static RunBloomFilter getFilter(String nodeName, String storageDir) {
+    synchronized (filters) {
+      RunBloomFilter filter = filters.get(key(nodeName, storageDir));
+      return filter != null && !filter.isSaturated() ? filter : null;
+    }
+  }
+
+  static void putFilter(String nodeName, String storageDir, RunBloomFilter filter) {
+    synchronized (filters) {
+      filters.put(key(nodeName, storageDir), filter);
+    }
+  }
+
+  // Removes the bloom filter of the node, e.g. after runs changed their key
+  static void invalidateFilter(String nodeName, String storageDir) {
+    synchronized (filters) {
+      filters.remove(key(nodeName, storageDir));
+    }
+  }
+
+  static void invalidate(String nodeName, String storageDir) {
+    detach(cache.remove(key(nodeName, storageDir)));
+    invalidateFilter(nodeName, storageDir);
+  }
+
+  static void clear() {
+    for (String key : new ArrayList<>(cache.keySet())) {
+      detach(cache.remove(key));
+    }
+    synchronized (filters) {
+      filters.clear();
+    }
+  }
+
+  // Called after the cached index of the node was modified as it might have grown
+  static void updated(String nodeName, String storageDir) {
+    CachedIndex cached = cache.get(key(nodeName, storageDir));
+    if (cached != null) {
+      synchronized (cached) {
+        if (!cached.removed) {
+          long bytes = cached.index.estimatedSize();
+          totalBytes.addAndGet(bytes - cached.bytes);
+          cached.bytes = bytes;
+        }
+      }
+    }
+    evict();
+  }
+
+  // Called after the limits were changed
+  static void updated() {
+    evict();
+  }
+
+  // Stops counting the size of an index that was removed from the cache
+  private static void detach(CachedIndex cached) {
+    if (cached != null) {
+      synchronized (cached) {
+        if (!cached.removed) {
+          cached.removed = true;
+          totalBytes.addAndGet(-cached.bytes);
+        }
+      }
+    }
+  }
+
+  private static void evict() {
+    AgentBuildHistoryConfig config = AgentBuildHistoryConfig.get();
+    int maxNodes = config != null ? config.getCacheMaxNodes() : AgentBuildHistoryConfig.DEFAULT_CACHE_MAX_NODES;
+    long maxBytes = (config != null ? config.getCacheMaxMemory() : AgentBuildHistoryConfig.DEFAULT_CACHE_MAX_MEMORY) * 1024L * 1024L;
+    if (cache.size() <= maxNodes && totalBytes.get() <= maxBytes) {
+      return;
+    }
+    synchronized (evictionLock) {
+      // the access times are copied, as they change while sorting
+      List<Candidate> candidates = new ArrayList<>(cache.size());
+      for (Map.Entry<String, CachedIndex> entry : cache.entrySet()) {
+        candidates.add(new Candidate(entry.getKey(), entry.getValue(), entry.getValue().lastAccess));
+      }
+      candidates.sort(Comparator.comparingLong(Candidate::lastAccess));
+      for (Candidate eldest : candidates) {
+        if (cache.size() <= maxNodes && totalBytes.get() <= maxBytes) {
+          break;
+        }
+        if (cache.remove(eldest.key(), eldest.cached())) {
+          detach(eldest.cached());
+          LOGGER.log(Level.FINER, () -> "Evicted history of " + eldest.key() + " from cache");
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package io.jenkins.plugins.agent_build_history;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.AtmostOneTaskExecutor;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Records the results of index entries that have none although their run is not running anymore, e.g. because the
+ * run was finalized while the index was not writable. Entries of runs that no longer exist are removed.
+ *
+ * <p>All nodes are reconciled periodically, nodes on which a query found such entries are reconciled right away.
+ * This loads the runs in the background, so queries never have to.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public class ResultReconciler extends AsyncPeriodicWork {
+
+  private static final Logger LOGGER = Logger.getLogger(ResultReconciler.class.getName());
+  private static final Set<String> requested = new LinkedHashSet<>();
+  private static final AtmostOneTaskExecutor<Void> executor = new AtmostOneTaskExecutor<>(ResultReconciler::reconcileRequested);
+
+  private record Entry(String jobName, int buildNumber) {}
+
+  public ResultReconciler() {
+    super("Agent build history result reconciliation");
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return TimeUnit.HOURS.toMillis(1);
+  }
+
+  @Override
+  protected void execute(TaskListener listener) {
+    String storageDir = AgentBuildHistoryConfig.get().getStorageDir();
+    int updated = 0;
+    for (String nodeName : BuildHistoryFileManager.getAllSavedNodeNames(storageDir)) {
+      updated += reconcile(nodeName, storageDir);
+    }
+    listener.getLogger().println("Reconciled " + updated + " history entries");
+  }
+
+  // Reconciles the node in the background
+  static void request(String nodeName) {
+    synchronized (requested) {
+      if (!requested.add(nodeName)) {
+        return;
+      }
+    }
+    executor.submit();
+  }
+
+  private static Void reconcileRequested() {
+    while (true) {
+      String nodeName;
+      synchronized (requested) {
+        if (requested.isEmpty()) {
+          return null;
+        }
+        nodeName = requested.iterator().next();
+        requested.remove(nodeName);
+      }
+      reconcile(nodeName, AgentBuildHistoryConfig.get().getStorageDir());
+    }
+  }
+
+  // Returns the number of entries that were updated or removed
+  static int reconcile(String nodeName, String storageDir) {
+    JobNameDictionary dictionary = JobNameDictionary.get(storageDir);
+    List<Entry> entries = BuildHistoryFileManager.queryIndex(nodeName, storageDir, index -> {
+      List<Entry> unknown = new ArrayList<>();
+      for (int i = 0; i < index.size(); i++) {
+        String jobName = dictionary.getName(index.getJobId(i));
+        if (index.getResultCode(i) == NodeIndex.NO_RESULT && jobName != null && !RunningBuilds.contains(jobName, index.getNumber(i))) {
+          unknown.add(new Entry(jobName, index.getNumber(i)));
+        }
+      }
+      return unknown;
+    });
+    int updated = 0;
+    // Runs are loaded without holding the node lock
+    for (Entry entry : entries) {
+      Job<?, ?> job = JobCache.get(entry.jobName);
+      if (job == null) {
+        continue;
+      }
+      Run<?, ?> run = job.getBuildByNumber(entry.buildNumber);
+      if (run == null) {
+        BuildHistoryFileManager.deleteExecution(nodeName, entry.jobName, entry.buildNumber, storageDir);
+        updated++;
+      } else if (run.isBuilding()) {
+        // e.g. a pipeline that resumed after a restart
+        RunningBuilds.add(nodeName, run);
+      } else if (run.getResult() != null) {
+        BuildHistoryFileManager.updateResult(nodeName, run, storageDir);
+        updated++;
+      }
+    }
+    if (updated > 0) {
+      LOGGER.log(Level.FINE, "Reconciled {0} entries of node {1}", new Object[] {updated, nodeName});
+    }
+    return updated;
+  }
+}
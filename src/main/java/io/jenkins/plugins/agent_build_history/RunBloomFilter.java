@@ -0,0 +1,65 @@
+package io.jenkins.plugins.agent_build_history;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Bloom filter of the run keys of a node index.
+ *
+ * <p>Kept for nodes whose index is not cached, so that a new run can be appended without reading the index when the
+ * filter says that it is not part of it yet. Removed runs stay in the filter, which only leads to an exact check.
+ */
+@Restricted(NoExternalUse.class)
+public class RunBloomFilter {
+
+  private static final int BITS_PER_ENTRY = 10;
+  private static final int HASHES = 5;
+  private static final int MAX_BITS = 1 << 23;
+
+  private final long[] bits;
+  private final int numBits;
+  private final int capacity;
+  private int count;
+
+  public RunBloomFilter(int expectedEntries) {
+    // leave room for the runs added after the filter was built
+    capacity = Math.max(expectedEntries * 2, 1024);
+    numBits = (int) Math.min((long) capacity * BITS_PER_ENTRY, MAX_BITS);
+    bits = new long[(numBits + 63) / 64];
+  }
+
+  static RunBloomFilter of(NodeIndex index) {
+    RunBloomFilter filter = new RunBloomFilter(index.size());
+    for (int i = 0; i < index.size(); i++) {
+      filter.put(NodeIndex.runKey(index.getJobId(i), index.getNumber(i)));
+    }
+    return filter;
+  }
+
+  public void put(long key) {
+    int h1 = RunKeySet.hash(key);
+    int h2 = ((int) (key >>> 32) * 31 + (int) key) | 1;
+    for (int i = 0; i < HASHES; i++) {
+      int bit = Math.floorMod(h1 + i * h2, numBits);
+      bits[bit >>> 6] |= 1L << bit;
+    }
+    count++;
+  }
+
+  public boolean mightContain(long key) {
+    int h1 = RunKeySet.hash(key);
+    int h2 = ((int) (key >>> 32) * 31 + (int) key) | 1;
+    for (int i = 0; i < HASHES; i++) {
+      int bit = Math.floorMod(h1 + i * h2, numBits);
+      if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // More entries than planned for increase the false positive rate, the filter should be rebuilt
+  public boolean isSaturated() {
+    return count > capacity;
+  }
+}
@@ -0,0 +1,83 @@
+package io.jenkins.plugins.agent_build_history;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Open addressing hash set of run keys as created by {@link NodeIndex#runKey(int, int)}, with the position of each
+ * key in the index.
+ *
+ * <p>Build numbers start at 1, so a key is never 0 and 0 marks an empty slot.
+ */
+@Restricted(NoExternalUse.class)
+public class RunKeySet {
+
+  private long[] table;
+  private int[] positions;
+  private int size;
+
+  public RunKeySet(int expectedSize) {
+    table = new long[tableSize(expectedSize)];
+    positions = new int[table.length];
+  }
+
+  private static int tableSize(int expectedSize) {
+    return Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+  }
+
+  public boolean contains(long key) {
+    return get(key) >= 0;
+  }
+
+  // Returns the position of the key or -1 if the set doesn't contain it
+  public int get(long key) {
+    int mask = table.length - 1;
+    for (int i = hash(key) & mask; table[i] != 0; i = (i + 1) & mask) {
+      if (table[i] == key) {
+        return positions[i];
+      }
+    }
+    return -1;
+  }
+
+  // Adds the key with its position, a key that is already contained keeps its first position
+  public boolean add(long key, int position) {
+    if ((size + 1) * 2 > table.length) {
+      rehash(table.length * 2);
+    }
+    int mask = table.length - 1;
+    int i = hash(key) & mask;
+    for (; table[i] != 0; i = (i + 1) & mask) {
+      if (table[i] == key) {
+        return false;
+      }
+    }
+    table[i] = key;
+    positions[i] = position;
+    size++;
+    return true;
+  }
+
+  private void rehash(int newLength) {
+    long[] old = table;
+    int[] oldPositions = positions;
+    table = new long[newLength];
+    positions = new int[newLength];
+    int mask = newLength - 1;
+    for (int j = 0; j < old.length; j++) {
+      if (old[j] != 0) {
+        int i = hash(old[j]) & mask;
+        while (table[i] != 0) {
+          i = (i + 1) & mask;
+        }
+        table[i] = old[j];
+        positions[i] = oldPositions[j];
+      }
+    }
+  }
+
+  static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
@@ -7,8 +7,11 @@ import hudson.model.Result;
 import hudson.model.Run;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
@@ -19,17 +22,26 @@ import org.kohsuke.stapler.export.ExportedBean;
 @ExportedBean(defaultVisibility = 2)
 public class RunListTable {
 
-  String computerName;
+  final String computerName;
   private static final double MAX_LIKELY_RUNS = 20;
-  private Iterable<AgentExecution> runs;
-  private final List<RunResult> results = new ArrayList<>();
-
-  public RunListTable(String computerName) {
+  private final List<RunResult> results;
+  private final int totalPages;
+  private final String nextCursor;
+  private final int pendingRuns;
+  private final Map<String, Integer> statusCounts;
+
+  // The table is built completely by the constructor, so it can be rendered by concurrent requests
+  public RunListTable(String computerName, AgentBuildHistory.ExecutionPage page, Map<String, Integer> statusCounts) {
     this.computerName = computerName;
-  }
-
-  public void setRuns(Iterable<AgentExecution> runs) {
-    this.runs = runs;
+    List<RunResult> results = new ArrayList<>();
+    for (AgentExecution execution : page.executions()) {
+      results.add(calculate(execution.getRun(), execution));
+    }
+    this.results = Collections.unmodifiableList(results);
+    this.totalPages = page.totalPages();
+    this.nextCursor = page.nextCursor();
+    this.pendingRuns = page.pendingRuns();
+    this.statusCounts = statusCounts != null ? Collections.unmodifiableMap(new LinkedHashMap<>(statusCounts)) : null;
   }
 
   @Exported(name = "runs")
@@ -37,6 +49,30 @@ public class RunListTable {
     return results;
   }
 
+  // Number of pages of the query or -1 when they were not counted
+  @Exported
+  public int getTotalPages() {
+    return totalPages;
+  }
+
+  // Cursor for the after parameter to get the next page, null when there are no more runs
+  @Exported
+  public String getNextCursor() {
+    return nextCursor;
+  }
+
+  // Number of runs of the page that were still loading and are missing from the results
+  @Exported
+  public int getPendingRuns() {
+    return pendingRuns;
+  }
+
+  // Number of runs on the node for each value of the status filter
+  @Exported
+  public Map<String, Integer> getStatusCounts() {
+    return statusCounts;
+  }
+
   @NonNull
   private RunResult calculate(Run<?, ?> run, AgentExecution execution) {
     RunResult result = new RunResult(run.getParent(), run);
@@ -117,12 +153,4 @@ public class RunListTable {
       return formatter.format(new Date(run.getStartTimeInMillis()));
     }
   }
-
-  void compute() {
-    for (AgentExecution execution : runs) {
-      Run<?, ?> run = execution.getRun();
-      RunResult element = calculate(run, execution);
-      results.add(element);
-    }
-  }
 }
@@ -0,0 +1,87 @@
+package io.jenkins.plugins.agent_build_history;
+
+import hudson.model.Run;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * In-memory set of the runs that started on a node and are not finalized yet.
+ *
+ * <p>Index entries of these runs have no result. Queries use the set to tell running builds apart from entries
+ * whose result was never recorded without loading the run. Next to the set, the number of running builds is
+ * counted per node and job, a run stops counting on a node once its result was recorded in the journal of the node.
+ */
+@Restricted(NoExternalUse.class)
+public class RunningBuilds {
+
+  // nodes each run is counted on
+  private static final Map<String, Set<String>> runs = new ConcurrentHashMap<>();
+  private static final Map<String, Map<String, Integer>> counts = new ConcurrentHashMap<>();
+
+  private RunningBuilds() {
+  }
+
+  private static String key(String jobName, int buildNumber) {
+    return jobName + "#" + buildNumber;
+  }
+
+  public static void add(String nodeName, Run<?, ?> run) {
+    String jobName = run.getParent().getFullName();
+    Set<String> nodes = runs.computeIfAbsent(key(jobName, run.getNumber()), k -> ConcurrentHashMap.newKeySet());
+    if (nodes.add(nodeName)) {
+      counts.computeIfAbsent(nodeName, k -> new ConcurrentHashMap<>()).merge(jobName, 1, Integer::sum);
+    }
+  }
+
+  // Stops counting the run on the node, called when its result is recorded
+  public static void remove(String nodeName, Run<?, ?> run) {
+    String jobName = run.getParent().getFullName();
+    String key = key(jobName, run.getNumber());
+    Set<String> nodes = runs.get(key);
+    if (nodes != null && nodes.remove(nodeName)) {
+      decrement(nodeName, jobName);
+      runs.computeIfPresent(key, (k, v) -> v.isEmpty() ? null : v);
+    }
+  }
+
+  public static void remove(Run<?, ?> run) {
+    String jobName = run.getParent().getFullName();
+    Set<String> nodes = runs.remove(key(jobName, run.getNumber()));
+    if (nodes != null) {
+      for (String nodeName : nodes) {
+        decrement(nodeName, jobName);
+      }
+    }
+  }
+
+  private static void decrement(String nodeName, String jobName) {
+    Map<String, Integer> jobs = counts.get(nodeName);
+    if (jobs != null) {
+      jobs.computeIfPresent(jobName, (k, count) -> count > 1 ? count - 1 : null);
+    }
+  }
+
+  public static boolean contains(String jobName, int buildNumber) {
+    return runs.containsKey(key(jobName, buildNumber));
+  }
+
+  // Returns the number of builds running on the node of the jobs whose id in the dictionary is accepted
+  public static int count(String nodeName, JobNameDictionary dictionary, IntPredicate jobIds) {
+    Map<String, Integer> jobs = counts.get(nodeName);
+    if (jobs == null) {
+      return 0;
+    }
+    int running = 0;
+    for (Map.Entry<String, Integer> entry : jobs.entrySet()) {
+      int jobId = dictionary.lookup(entry.getKey());
+      if (jobId >= 0 && jobIds.test(jobId)) {
+        running += entry.getValue();
+      }
+    }
+    return running;
+  }
+}
@@ -1,6 +1,8 @@
 package io.jenkins.plugins.agent_build_history;
 
 import hudson.model.Result;
+import java.util.List;
+import java.util.Locale;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.StaplerRequest2;
@@ -8,6 +10,21 @@ import org.kohsuke.stapler.StaplerRequest2;
 @Restricted(NoExternalUse.class)
 public class Utils {
 
+  // Values of the status filter, all matches every run
+  static final List<String> STATUS_FILTERS = List.of("all", "success", "unstable", "failure", "not_built", "aborted");
+
+  // Returns the result the status filter selects or null for all and unknown values
+  static Result getFilterResult(String statusFilter) {
+    return switch (statusFilter.toLowerCase(Locale.ENGLISH)) {
+      case "success" -> Result.SUCCESS;
+      case "unstable" -> Result.UNSTABLE;
+      case "failure" -> Result.FAILURE;
+      case "not_built" -> Result.NOT_BUILT;
+      case "aborted" -> Result.ABORTED;
+      default -> null;
+    };
+  }
+
   static boolean includeRun(Result result, String statusFilter) {
     if (!"all".equals(statusFilter) && result != null) {
       if ("success".equalsIgnoreCase(statusFilter) && result != Result.SUCCESS) {
@@ -3,22 +3,46 @@ package io.jenkins.plugins.agent_build_history;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import hudson.model.Computer;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.Item;
 import hudson.model.Node;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.User;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
 import hudson.slaves.DumbSlave;
 import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.FailureBuilder;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 
 @WithJenkins
@@ -65,7 +89,7 @@ class AgentBuildHistoryTest {
     // Now, let's test the build history with the agent
     AgentBuildHistory history = new AgentBuildHistory(agentComputer);
     List<String> indexLines = BuildHistoryFileManager.readIndexFile(agentComputer.getName(), AgentBuildHistoryConfig.get().getStorageDir());
-    List<AgentExecution> executions = history.getExecutionsForNode(indexLines, agentComputer.getName(), 1, 10, "startTime", "desc", "all");
+    List<AgentExecution> executions = history.getExecutionsForNode(indexLines, agentComputer.getName(), 1, 10, "startTime", "desc", "all").executions();
 
     // Ensure the build history includes the executed build
     assertFalse(executions.isEmpty(), "Build history should not be empty");
@@ -92,10 +116,14 @@ class AgentBuildHistoryTest {
     assertNotNull(computer, "Computer should not be null");
     AgentBuildHistory history = new AgentBuildHistory(computer);
     List<String> indexLines = BuildHistoryFileManager.readIndexFile(computer.getName(), AgentBuildHistoryConfig.get().getStorageDir());
-    List<AgentExecution> executions = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all");
+    List<AgentExecution> executions = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all").executions();
 
     // Ensure build history includes the test project
     assertFalse(executions.isEmpty(), "Build history should not be empty");
+
+    // Reading lines doesn't add unknown jobs to the dictionary
+    assertTrue(history.getExecutionsForNode(List.of("unknown-job;1;0"), "", 1, 10, "startTime", "desc", "all").executions().isEmpty());
+    assertEquals(-1, JobNameDictionary.get(AgentBuildHistoryConfig.get().getStorageDir()).lookup("unknown-job"));
   }
 
   @Test
@@ -115,7 +143,7 @@ class AgentBuildHistoryTest {
     // Test that the workflow build history is being tracked correctly
     AgentBuildHistory history = new AgentBuildHistory(jenkinsRule.jenkins.getComputer(""));
     List<String> indexLines = BuildHistoryFileManager.readIndexFile("", AgentBuildHistoryConfig.get().getStorageDir());
-    List<AgentExecution> executions = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all");
+    List<AgentExecution> executions = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all").executions();
 
     assertFalse(executions.isEmpty(), "Build history should not be empty");
   }
@@ -133,8 +161,8 @@ class AgentBuildHistoryTest {
     // Check the pagination of the build history
     AgentBuildHistory history = new AgentBuildHistory(jenkinsRule.jenkins.getComputer(""));
     List<String> indexLines = BuildHistoryFileManager.readIndexFile("", AgentBuildHistoryConfig.get().getStorageDir());
-    List<AgentExecution> executionsPage1 = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all");
-    List<AgentExecution> executionsPage2 = history.getExecutionsForNode(indexLines, "", 2, 10, "startTime", "desc", "all");
+    List<AgentExecution> executionsPage1 = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all").executions();
+    List<AgentExecution> executionsPage2 = history.getExecutionsForNode(indexLines, "", 2, 10, "startTime", "desc", "all").executions();
 
     assertEquals(10, executionsPage1.size());
     assertEquals(10, executionsPage2.size());
@@ -153,7 +181,7 @@ class AgentBuildHistoryTest {
     // Test sorting by build number
     AgentBuildHistory history = new AgentBuildHistory(jenkinsRule.jenkins.getComputer(""));
     List<String> indexLines = BuildHistoryFileManager.readIndexFile("", AgentBuildHistoryConfig.get().getStorageDir());
-    List<AgentExecution> executions = history.getExecutionsForNode(indexLines, "", 1, 10, "build", "asc", "all");
+    List<AgentExecution> executions = history.getExecutionsForNode(indexLines, "", 1, 10, "build", "asc", "all").executions();
 
     // Check that the executions are sorted by build number
     for (int i = 0; i < executions.size() - 1; i++) {
@@ -178,7 +206,7 @@ class AgentBuildHistoryTest {
     // Test that the flow node execution is tracked
     AgentBuildHistory history = new AgentBuildHistory(jenkinsRule.jenkins.getComputer(""));
     List<String> indexLines = BuildHistoryFileManager.readIndexFile("", AgentBuildHistoryConfig.get().getStorageDir());
-    List<AgentExecution> executions = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all");
+    List<AgentExecution> executions = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all").executions();
 
     AgentExecution execution = executions.get(0);
     assertFalse(execution.getFlowNodes().isEmpty(), "Flow nodes should be tracked");
@@ -196,7 +224,7 @@ class AgentBuildHistoryTest {
     // Verify the builds are in the history
     AgentBuildHistory history = new AgentBuildHistory(jenkinsRule.jenkins.getComputer(""));
     List<String> indexLines = BuildHistoryFileManager.readIndexFile("", AgentBuildHistoryConfig.get().getStorageDir());
-    List<AgentExecution> executionsBeforeDeletion = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all");
+    List<AgentExecution> executionsBeforeDeletion = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all").executions();
     assertEquals(2, executionsBeforeDeletion.size());
 
     // Delete the second build
@@ -204,7 +232,7 @@ class AgentBuildHistoryTest {
 
     // Verify the build is removed from history
     indexLines = BuildHistoryFileManager.readIndexFile("", AgentBuildHistoryConfig.get().getStorageDir());
-    List<AgentExecution> executionsAfterDeletion = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all");
+    List<AgentExecution> executionsAfterDeletion = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all").executions();
     assertEquals(1, executionsAfterDeletion.size());
 
     assertEquals(build1.getNumber(), executionsAfterDeletion.get(0).getRun().getNumber(), "The first build should still be in the history");
@@ -221,7 +249,7 @@ class AgentBuildHistoryTest {
     // Verify the job is in the history
     AgentBuildHistory history = new AgentBuildHistory(jenkinsRule.jenkins.getComputer(""));
     List<String> indexLines = BuildHistoryFileManager.readIndexFile("", AgentBuildHistoryConfig.get().getStorageDir());
-    List<AgentExecution> executionsBeforeDeletion = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all");
+    List<AgentExecution> executionsBeforeDeletion = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all").executions();
     assertFalse(executionsBeforeDeletion.isEmpty(), "Build history should not be empty");
 
     // Delete the job
@@ -229,7 +257,7 @@ class AgentBuildHistoryTest {
 
     // Verify the job's history is removed
     indexLines = BuildHistoryFileManager.readIndexFile("", AgentBuildHistoryConfig.get().getStorageDir());
-    List<AgentExecution> executionsAfterDeletion = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all");
+    List<AgentExecution> executionsAfterDeletion = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all").executions();
     assertTrue(executionsAfterDeletion.isEmpty(), "Build history should be empty after job deletion");
   }
 
@@ -245,7 +273,7 @@ class AgentBuildHistoryTest {
     // Verify the job is in the history
     AgentBuildHistory history = new AgentBuildHistory(jenkinsRule.jenkins.getComputer(""));
     List<String> indexLines = BuildHistoryFileManager.readIndexFile("", AgentBuildHistoryConfig.get().getStorageDir());
-    List<AgentExecution> executionsBeforeRename = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all");
+    List<AgentExecution> executionsBeforeRename = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all").executions();
     assertFalse(executionsBeforeRename.isEmpty(), "Build history should not be empty");
 
     // Rename the job
@@ -253,7 +281,7 @@ class AgentBuildHistoryTest {
 
     // Verify the history is updated with the new job name
     indexLines = BuildHistoryFileManager.readIndexFile("", AgentBuildHistoryConfig.get().getStorageDir());
-    List<AgentExecution> executionsAfterRename = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all");
+    List<AgentExecution> executionsAfterRename = history.getExecutionsForNode(indexLines, "", 1, 10, "startTime", "desc", "all").executions();
     assertFalse(executionsAfterRename.isEmpty(), "Build history should still exist after job rename");
     assertEquals("new-job-name", executionsAfterRename.get(0).getRun().getParent().getName(), "The build should now be associated with the new job name");
 
@@ -284,7 +312,7 @@ class AgentBuildHistoryTest {
     AgentBuildHistory history = new AgentBuildHistory(oldAgent.toComputer());
     List<String> indexLines = BuildHistoryFileManager.readIndexFile("test-agent-1", AgentBuildHistoryConfig.get().getStorageDir());
 
-    List<AgentExecution> executionsBeforeRename = history.getExecutionsForNode( indexLines, "test-agent-1", 1, 10, "startTime", "desc", "all");
+    List<AgentExecution> executionsBeforeRename = history.getExecutionsForNode( indexLines, "test-agent-1", 1, 10, "startTime", "desc", "all").executions();
     assertFalse(executionsBeforeRename.isEmpty(), "Build history should not be empty");
 
     // Simulate the renaming of the node
@@ -298,7 +326,7 @@ class AgentBuildHistoryTest {
     // Verify the history is updated with the new node name
     indexLines = BuildHistoryFileManager.readIndexFile("renamed-agent", AgentBuildHistoryConfig.get().getStorageDir());
 
-    List<AgentExecution> executionsAfterRename = history.getExecutionsForNode(indexLines, "renamed-agent", 1, 10, "startTime", "desc", "all");
+    List<AgentExecution> executionsAfterRename = history.getExecutionsForNode(indexLines, "renamed-agent", 1, 10, "startTime", "desc", "all").executions();
     assertFalse(executionsAfterRename.isEmpty(), "Build history should still exist after node rename");
   }
 
@@ -353,8 +381,8 @@ class AgentBuildHistoryTest {
     List<String> indexLines1 = BuildHistoryFileManager.readIndexFile("agent-1", AgentBuildHistoryConfig.get().getStorageDir());
     List<String> indexLines2 = BuildHistoryFileManager.readIndexFile("agent-2", AgentBuildHistoryConfig.get().getStorageDir());
 
-    List<AgentExecution> executionsAgent1 = historyAgent1.getExecutionsForNode(indexLines1, "agent-1", 1, 10, "startTime", "desc", "all");
-    List<AgentExecution> executionsAgent2 = historyAgent2.getExecutionsForNode(indexLines2, "agent-2", 1, 10, "startTime", "desc", "all");
+    List<AgentExecution> executionsAgent1 = historyAgent1.getExecutionsForNode(indexLines1, "agent-1", 1, 10, "startTime", "desc", "all").executions();
+    List<AgentExecution> executionsAgent2 = historyAgent2.getExecutionsForNode(indexLines2, "agent-2", 1, 10, "startTime", "desc", "all").executions();
 
     // Ensure there are executions for both agents
     assertFalse(executionsAgent1.isEmpty(), "Build history for agent 1 should not be empty");
@@ -376,4 +404,423 @@ class AgentBuildHistoryTest {
 
     assertEquals(1, flowNodesAgent2.size(), "Agent 2 should have one flow node");
   }
+
+  @Test
+  void testStorageQueryWithStatusFilter() throws Exception {
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject("filtered-project");
+    jenkinsRule.buildAndAssertSuccess(project);
+    project.getBuildersList().add(new FailureBuilder());
+    jenkinsRule.buildAndAssertStatus(Result.FAILURE, project);
+    jenkinsRule.buildAndAssertStatus(Result.FAILURE, project);
+
+    AgentBuildHistoryStorage storage = AgentBuildHistoryStorage.get();
+    assertTrue(storage instanceof FlatFileHistoryStorage, "Flat file storage should be the default");
+    AgentBuildHistoryStorage.HistoryPage page = storage.query("", "startTime", "desc", "failure", 0, 1);
+    assertEquals(2, page.totalEntries());
+    assertEquals(1, page.entries().size());
+    assertEquals(3, page.entries().get(0).buildNumber());
+    assertEquals(Result.FAILURE, page.entries().get(0).result());
+
+    AgentBuildHistory history = new AgentBuildHistory(jenkinsRule.jenkins.getComputer(""));
+    AgentBuildHistory.ExecutionPage executionPage = history.getExecutionsForNode("", 1, 10, "startTime", "desc", "success");
+    assertEquals(1, executionPage.executions().size());
+    assertEquals(1, executionPage.totalPages());
+  }
+
+  @Test
+  void testCursorPagination() throws Exception {
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject("cursor-project");
+    for (int i = 0; i < 5; i++) {
+      jenkinsRule.buildAndAssertSuccess(project);
+    }
+
+    AgentBuildHistory history = new AgentBuildHistory(jenkinsRule.jenkins.getComputer(""));
+    AgentBuildHistory.ExecutionPage executionPage = history.getExecutionsAfter("", "", 2, "desc", "all");
+    assertEquals(List.of(5, 4), executionPage.executions().stream().map(e -> e.getRun().getNumber()).toList());
+    assertNotNull(executionPage.nextCursor(), "Cursor for the next page should be set");
+
+    // New builds don't shift the following pages
+    jenkinsRule.buildAndAssertSuccess(project);
+    List<Integer> numbers = new ArrayList<>();
+    while (executionPage.nextCursor() != null) {
+      executionPage = history.getExecutionsAfter("", executionPage.nextCursor(), 2, "desc", "all");
+      executionPage.executions().forEach(e -> numbers.add(e.getRun().getNumber()));
+    }
+    assertEquals(List.of(3, 2, 1), numbers);
+  }
+
+  @Test
+  void testCursorPaginationReadsSegments() throws Exception {
+    jenkinsRule.createFreeStyleProject("segmented-project");
+    long now = System.currentTimeMillis();
+    // two full weeks that get a segment each and a run of the current week
+    StringBuilder lines = new StringBuilder();
+    int runs = 2 * IndexSegments.MIN_SEGMENT_SIZE + 1;
+    for (int i = 1; i <= runs; i++) {
+      long startTime = i == runs ? now : now - TimeUnit.DAYS.toMillis(i <= IndexSegments.MIN_SEGMENT_SIZE ? 14 : 7) + i;
+      lines.append("segmented-project;").append(i).append(';').append(startTime).append(";SUCCESS\n");
+    }
+    Files.writeString(new File(tempDir, "_index.txt").toPath(), lines.toString());
+    BuildHistoryFileManager.compact("", tempDir.getAbsolutePath());
+    AgentBuildHistoryConfig.get().setCacheMaxNodes(0);
+    assertEquals(3, BuildHistoryFileManager.getSegmentRanges("", tempDir.getAbsolutePath(), now, true).size());
+
+    // Without cached index the pages are read segment by segment
+    AgentBuildHistoryStorage storage = AgentBuildHistoryStorage.get();
+    for (String sortOrder : List.of("desc", "asc")) {
+      List<Integer> numbers = new ArrayList<>();
+      AgentBuildHistoryStorage.HistoryCursor cursor = null;
+      List<AgentBuildHistoryStorage.HistoryEntry> entries;
+      do {
+        entries = storage.queryAfter("", sortOrder, "all", cursor, 600).entries();
+        entries.forEach(entry -> numbers.add(entry.buildNumber()));
+        cursor = entries.isEmpty() ? null : AgentBuildHistoryStorage.HistoryCursor.of(entries.get(entries.size() - 1));
+      } while (entries.size() == 600);
+      assertEquals(runs, numbers.size());
+      for (int k = 0; k < runs; k++) {
+        assertEquals(sortOrder.equals("desc") ? runs - k : k + 1, numbers.get(k));
+      }
+    }
+    assertNull(NodeIndexCache.get("", tempDir.getAbsolutePath()));
+  }
+
+  @Test
+  void testEntriesWithoutResultAreReconciled() throws Exception {
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject("reconciled-project");
+    FreeStyleBuild build = jenkinsRule.buildAndAssertSuccess(project);
+    // entries of a finished and a deleted run whose results were never recorded
+    List<String> lines = List.of(
+        "reconciled-project;1;" + build.getStartTimeInMillis(),
+        "reconciled-project;99;" + build.getStartTimeInMillis());
+
+    JobNameDictionary dictionary = JobNameDictionary.get(tempDir.getAbsolutePath());
+    NodeIndex index = NodeIndex.parse(String.join("\n", lines).getBytes(StandardCharsets.UTF_8), dictionary);
+    assertEquals(2, FlatFileHistoryStorage.query(null, index, dictionary, "startTime", "desc", "all", 0, 10, false).totalEntries());
+    assertEquals(0, FlatFileHistoryStorage.query(null, index, dictionary, "startTime", "desc", "success", 0, 10, false).totalEntries());
+
+    Files.write(new File(tempDir, "reconciled-node_index.txt").toPath(), lines);
+    assertEquals(2, ResultReconciler.reconcile("reconciled-node", tempDir.getAbsolutePath()));
+    AgentBuildHistoryStorage storage = AgentBuildHistoryStorage.get();
+    assertEquals(1, storage.query("reconciled-node", "startTime", "desc", "all", 0, 10).totalEntries());
+    AgentBuildHistoryStorage.HistoryPage page = storage.query("reconciled-node", "startTime", "desc", "success", 0, 10);
+    assertEquals(1, page.totalEntries());
+    assertEquals(Result.SUCCESS, page.entries().get(0).result());
+  }
+
+  @Test
+  void testAgentSegmentsAreCached() throws Exception {
+    WorkflowJob job = jenkinsRule.jenkins.createProject(WorkflowJob.class, "segment-project");
+    job.setDefinition(new CpsFlowDefinition("node { echo 'first' }\nnode { error 'second' }", true));
+    WorkflowRun build = jenkinsRule.buildAndAssertStatus(Result.FAILURE, job);
+
+    AgentBuildHistory history = new AgentBuildHistory(jenkinsRule.jenkins.getComputer(""));
+    List<AgentExecution.FlowNodeExecution> scanned = new ArrayList<>(
+        history.getExecutionsForNode("", 1, 10, "startTime", "desc", "all").executions().get(0).getFlowNodes());
+    assertEquals(2, scanned.size());
+    assertTrue(new File(build.getRootDir(), AgentSegmentCache.FILE_NAME).exists(), "Segments should be stored with the run");
+
+    // read back from the build directory
+    AgentSegmentCache.clear();
+    List<AgentExecution.FlowNodeExecution> cached = new ArrayList<>(
+        history.getExecutionsForNode("", 1, 10, "startTime", "desc", "all").executions().get(0).getFlowNodes());
+    assertEquals(scanned.size(), cached.size());
+    for (int i = 0; i < scanned.size(); i++) {
+      assertEquals(scanned.get(i).getNodeId(), cached.get(i).getNodeId());
+      assertEquals(scanned.get(i).getStartTime(), cached.get(i).getStartTime());
+      assertEquals(scanned.get(i).getDuration(), cached.get(i).getDuration());
+      assertEquals(scanned.get(i).getFlowNodeStatus(), cached.get(i).getFlowNodeStatus());
+    }
+    assertEquals(AgentExecution.Status.FAILURE, cached.get(0).getFlowNodeStatus());
+  }
+
+  @Test
+  void testPageRowsKeepTheirOrder() throws Exception {
+    FreeStyleProject freestyle = jenkinsRule.createFreeStyleProject("ordered-freestyle");
+    WorkflowJob pipeline = jenkinsRule.jenkins.createProject(WorkflowJob.class, "ordered-pipeline");
+    pipeline.setDefinition(new CpsFlowDefinition("node { echo 'Hello' }", true));
+    List<Run<?, ?>> runs = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      runs.add(jenkinsRule.buildAndAssertSuccess(freestyle));
+      runs.add(jenkinsRule.buildAndAssertSuccess(pipeline));
+    }
+
+    AgentBuildHistory history = new AgentBuildHistory(jenkinsRule.jenkins.getComputer(""));
+    List<AgentExecution> executions = history.getExecutionsForNode("", 1, runs.size(), "startTime", "asc", "all").executions();
+    assertEquals(runs, executions.stream().map(AgentExecution::getRun).toList());
+  }
+
+  @Test
+  void testStatusCounts() throws Exception {
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject("counted-project");
+    jenkinsRule.buildAndAssertSuccess(project);
+    project.getBuildersList().add(new FailureBuilder());
+    jenkinsRule.buildAndAssertStatus(Result.FAILURE, project);
+    FreeStyleBuild failed = jenkinsRule.buildAndAssertStatus(Result.FAILURE, project);
+
+    AgentBuildHistoryStorage storage = AgentBuildHistoryStorage.get();
+    Map<String, Integer> counts = storage.getStatusCounts("");
+    assertEquals(3, counts.get("all"));
+    assertEquals(1, counts.get("success"));
+    assertEquals(2, counts.get("failure"));
+    assertEquals(0, counts.get("aborted"));
+    assertEquals(0, counts.get("running"));
+
+    failed.delete();
+    counts = storage.getStatusCounts("");
+    assertEquals(2, counts.get("all"));
+    assertEquals(1, counts.get("failure"));
+    // the total of a query is taken from the counters
+    assertEquals(1, storage.query("", "startTime", "desc", "failure", 0, 10).totalEntries());
+
+    // builds of jobs the user can't read are not counted
+    FreeStyleProject hidden = jenkinsRule.createFreeStyleProject("hidden-project");
+    jenkinsRule.buildAndAssertSuccess(hidden);
+    assertEquals(3, storage.getStatusCounts("").get("all"));
+    jenkinsRule.jenkins.setSecurityRealm(jenkinsRule.createDummySecurityRealm());
+    jenkinsRule.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+        .grant(Jenkins.READ).everywhere().to("reader")
+        .grant(Item.READ).onItems(project).to("reader"));
+    try (ACLContext ignored = ACL.as2(User.getById("reader", true).impersonate2())) {
+      counts = storage.getStatusCounts("");
+      assertEquals(2, counts.get("all"));
+      assertEquals(1, counts.get("success"));
+      AgentBuildHistoryStorage.HistoryPage page = storage.query("", "startTime", "desc", "all", 0, 10);
+      assertEquals(2, page.totalEntries());
+      assertEquals(2, page.entries().size());
+    }
+  }
+
+  @Test
+  void testRunningBuildsAreCounted() throws Exception {
+    WorkflowJob job = jenkinsRule.jenkins.createProject(WorkflowJob.class, "running-project");
+    job.setDefinition(new CpsFlowDefinition("node { sleep 600 }", true));
+    WorkflowRun build = job.scheduleBuild2(0).waitForStart();
+    jenkinsRule.waitForMessage("Sleeping for", build);
+
+    AgentBuildHistoryStorage storage = AgentBuildHistoryStorage.get();
+    Map<String, Integer> counts = storage.getStatusCounts("");
+    assertEquals(1, counts.get("running"));
+    assertEquals(1, counts.get("success"));
+    assertEquals(1, storage.query("", "startTime", "desc", "failure", 0, 10).totalEntries());
+
+    build.doStop();
+    jenkinsRule.assertBuildStatus(Result.ABORTED, jenkinsRule.waitForCompletion(build));
+    counts = storage.getStatusCounts("");
+    assertEquals(0, counts.get("running"));
+    assertEquals(0, counts.get("success"));
+    assertEquals(1, counts.get("aborted"));
+  }
+
+  @Test
+  void testConcurrentRequestsDontShareState() throws Exception {
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject("concurrent-project");
+    for (int i = 0; i < 4; i++) {
+      jenkinsRule.buildAndAssertSuccess(project);
+    }
+
+    AgentBuildHistory history = new AgentBuildHistory(jenkinsRule.jenkins.getComputer(""));
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<AgentBuildHistory.ExecutionPage>> pages = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        int pageSize = i % 2 == 0 ? 1 : 4;
+        pages.add(executor.submit(() -> history.getExecutionsForNode("", 1, pageSize, "startTime", "desc", "all")));
+      }
+      for (int i = 0; i < pages.size(); i++) {
+        AgentBuildHistory.ExecutionPage page = pages.get(i).get();
+        assertEquals(i % 2 == 0 ? 4 : 1, page.totalPages());
+        assertEquals(i % 2 == 0 ? 1 : 4, page.executions().size());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void testJobCacheIsInvalidated() throws Exception {
+    assertNull(JobCache.get("cached-project"));
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject("cached-project");
+    assertSame(project, JobCache.get("cached-project"));
+
+    project.renameTo("renamed-cached-project");
+    assertNull(JobCache.get("cached-project"));
+    assertSame(project, JobCache.get("renamed-cached-project"));
+
+    project.delete();
+    assertNull(JobCache.get("renamed-cached-project"));
+  }
+
+  @Test
+  void testHistoryExport() throws Exception {
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject("exported,project");
+    jenkinsRule.buildAndAssertSuccess(project);
+    project.getBuildersList().add(new FailureBuilder());
+    jenkinsRule.buildAndAssertStatus(Result.FAILURE, project);
+
+    StringWriter csv = new StringWriter();
+    HistoryExporter csvExporter = new HistoryExporter("csv", List.of("job", "number", "result", "displayName"));
+    assertEquals(2, csvExporter.export("", "asc", "all", csv));
+    assertEquals("job,number,result,displayName\n"
+        + "\"exported,project\",1,SUCCESS,#1\n"
+        + "\"exported,project\",2,FAILURE,#2\n", csv.toString());
+
+    StringWriter ndjson = new StringWriter();
+    new HistoryExporter("ndjson", HistoryExporter.DEFAULT_FIELDS).export("", "desc", "failure", ndjson);
+    String[] lines = ndjson.toString().split("\n");
+    assertEquals(1, lines.length);
+    JSONObject row = JSONObject.fromObject(lines[0]);
+    assertEquals(2, row.getInt("number"));
+    assertEquals("FAILURE", row.getString("result"));
+
+    assertThrows(IllegalArgumentException.class, () -> new HistoryExporter("xml", HistoryExporter.DEFAULT_FIELDS));
+    assertThrows(IllegalArgumentException.class, () -> new HistoryExporter("csv", List.of("unknown")));
+  }
+
+  @Test
+  void testBackfill() throws Exception {
+    FreeStyleProject freestyle = jenkinsRule.createFreeStyleProject("backfilled-freestyle");
+    WorkflowJob pipeline = jenkinsRule.jenkins.createProject(WorkflowJob.class, "backfilled-pipeline");
+    pipeline.setDefinition(new CpsFlowDefinition("node { echo 'Hello' }", true));
+    for (int i = 0; i < 3; i++) {
+      jenkinsRule.buildAndAssertSuccess(freestyle);
+      jenkinsRule.buildAndAssertSuccess(pipeline);
+    }
+
+    // a new storage directory doesn't know the existing runs
+    AgentBuildHistoryConfig.get().setStorageDir(new File(tempDir, "backfill").getAbsolutePath());
+    AgentBuildHistoryStorage storage = AgentBuildHistoryStorage.get();
+    assertEquals(0, storage.query("", "startTime", "desc", "all", 0, 10).totalEntries());
+
+    AgentBuildHistoryConfig.get().setBackfillThreads(2);
+    assertTrue(HistoryBackfill.run());
+    AgentBuildHistoryStorage.HistoryPage page = storage.query("", "startTime", "asc", "all", 0, 10);
+    assertEquals(6, page.totalEntries());
+    assertEquals(List.of(1, 1, 2, 2, 3, 3), page.entries().stream().map(AgentBuildHistoryStorage.HistoryEntry::buildNumber).toList());
+  }
+
+  @Test
+  void testBackfillUsesRecordedAgents() throws Exception {
+    WorkflowJob pipeline = jenkinsRule.jenkins.createProject(WorkflowJob.class, "recorded-pipeline");
+    pipeline.setDefinition(new CpsFlowDefinition("node { echo 'Hello' }", true));
+    WorkflowRun run = jenkinsRule.buildAndAssertSuccess(pipeline);
+    HistoryAction action = run.getAction(HistoryAction.class);
+    assertNotNull(action);
+    assertFalse(HistoryBackfill.requiresGraphScan(run));
+    assertEquals(Set.of(""), HistoryBackfill.getNodeNames(run));
+
+    // the recorded agents are used without looking at the flow graph
+    action.getAgents().clear();
+    assertTrue(HistoryBackfill.getNodeNames(run).isEmpty());
+
+    // runs from before the plugin was installed are scanned
+    run.removeActions(HistoryAction.class);
+    assertTrue(HistoryBackfill.requiresGraphScan(run));
+    assertEquals(Set.of(""), HistoryBackfill.getNodeNames(run));
+  }
+
+  @Test
+  void testBackfillResumesFromCheckpoint() throws Exception {
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject("resumed-project");
+    for (int i = 0; i < 4; i++) {
+      jenkinsRule.buildAndAssertSuccess(project);
+    }
+    String storageDir = new File(tempDir, "resumed").getAbsolutePath();
+    AgentBuildHistoryConfig.get().setStorageDir(storageDir);
+
+    // an interrupted synchronization already wrote the first two builds
+    BackfillCheckpoint checkpoint = BackfillCheckpoint.load(storageDir);
+    checkpoint.putAll(Map.of("resumed-project", 2));
+    checkpoint.save();
+    assertEquals(2, BackfillCheckpoint.load(storageDir).getLastNumber("resumed-project"));
+
+    assertTrue(HistoryBackfill.run());
+    AgentBuildHistoryStorage.HistoryPage page = AgentBuildHistoryStorage.get().query("", "startTime", "asc", "all", 0, 10);
+    assertEquals(List.of(3, 4), page.entries().stream().map(AgentBuildHistoryStorage.HistoryEntry::buildNumber).toList());
+    assertFalse(new File(storageDir, BackfillCheckpoint.FILE_NAME).exists(), "Checkpoint should be deleted when done");
+    assertNull(HistoryBackfill.getProgress());
+  }
+
+  @Test
+  void testPausedBackfillWaits() throws Exception {
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject("paused-project");
+    jenkinsRule.buildAndAssertSuccess(project);
+    jenkinsRule.buildAndAssertSuccess(project);
+    AgentBuildHistoryConfig config = AgentBuildHistoryConfig.get();
+    config.setStorageDir(new File(tempDir, "paused").getAbsolutePath());
+    config.setBackfillRunsPerSecond(10);
+    config.setBackfillPaused(true);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Boolean> backfill = executor.submit(HistoryBackfill::run);
+      Thread.sleep(2 * BackfillThrottle.POLL_INTERVAL);
+      assertFalse(backfill.isDone(), "Paused synchronization should wait");
+      assertEquals(0, AgentBuildHistoryStorage.get().query("", "startTime", "desc", "all", 0, 10).totalEntries());
+
+      config.setBackfillPaused(false);
+      assertTrue(backfill.get(30, TimeUnit.SECONDS));
+      assertEquals(2, AgentBuildHistoryStorage.get().query("", "startTime", "desc", "all", 0, 10).totalEntries());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void testBackfillBufferSpillsAndDeduplicates() throws Exception {
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject("buffered-project");
+    List<Run<?, ?>> runs = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      runs.add(jenkinsRule.buildAndAssertSuccess(project));
+    }
+    String storageDir = new File(tempDir, "buffered").getAbsolutePath();
+    AgentBuildHistoryConfig.get().setStorageDir(storageDir);
+
+    BackfillBuffer buffer = new BackfillBuffer(storageDir, 2);
+    for (int i = runs.size() - 1; i >= 0; i--) {
+      buffer.add("", List.of(runs.get(i)));
+    }
+    buffer.add("", List.of(runs.get(0)));
+    File[] spilled = new File(storageDir, "backfill").listFiles();
+    assertNotNull(spilled);
+    assertTrue(spilled.length > 0, "Runs should have been spilled");
+
+    buffer.flush();
+    assertEquals(0, new File(storageDir, "backfill").listFiles().length);
+    List<String> lines = Files.readAllLines(new File(storageDir, "_index.txt").toPath());
+    assertEquals(5, lines.size(), "Each run should be written once");
+    AgentBuildHistoryStorage.HistoryPage page = AgentBuildHistoryStorage.get().query("", "startTime", "asc", "all", 0, 10);
+    assertEquals(List.of(1, 2, 3, 4, 5), page.entries().stream().map(AgentBuildHistoryStorage.HistoryEntry::buildNumber).toList());
+  }
+
+  @Test
+  void testBackfillBufferKeepsSpillsOnFailure() throws Exception {
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject("spilled-project");
+    List<Run<?, ?>> runs = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      runs.add(jenkinsRule.buildAndAssertSuccess(project));
+    }
+    String storageDir = new File(tempDir, "spilled").getAbsolutePath();
+    AgentBuildHistoryConfig.get().setStorageDir(storageDir);
+    File spillDir = new File(storageDir, "backfill");
+
+    // a failed spill is reported instead of buffering on
+    Files.createDirectories(spillDir.getParentFile().toPath());
+    Files.createFile(spillDir.toPath());
+    BackfillBuffer failing = new BackfillBuffer(storageDir, 1);
+    assertThrows(IOException.class, () -> failing.add("", runs.subList(0, 2)));
+    Files.delete(spillDir.toPath());
+
+    BackfillBuffer first = new BackfillBuffer(storageDir, 1);
+    first.add("other", List.of());
+    first.add("", runs.subList(0, 2));
+    // only nodes with buffered entries are spilled
+    assertEquals(1, spillDir.listFiles().length);
+
+    // the spill files of a synchronization that did not complete are imported by the next one
+    BackfillBuffer second = new BackfillBuffer(storageDir, 1);
+    second.add("", runs.subList(2, 3));
+    second.flush();
+    assertEquals(0, spillDir.listFiles().length);
+    assertEquals(3, AgentBuildHistoryStorage.get().query("", "startTime", "asc", "all", 0, 10).totalEntries());
+  }
 }
@@ -1,14 +1,23 @@
 package io.jenkins.plugins.agent_build_history;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import hudson.model.FreeStyleProject;
+import hudson.model.Result;
 import hudson.model.Run;
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
@@ -203,6 +212,290 @@ class BuildHistoryFileManagerTest {
     assertFalse(indexEntriesAfterRenameNode2.get(0).contains(oldJobName), "Node 2 index should not contain the old job name");
   }
 
+  @Test
+  void testJournalCompaction() throws Exception {
+    String nodeName = "test-node";
+    String jobName = "test-job";
+    Run<?, ?> run = createDummyRun(jobName);
+
+    BuildHistoryFileManager.addRunToNodeIndex(nodeName, run, storageDir.getAbsolutePath());
+    BuildHistoryFileManager.deleteJobSerialization(jobName, storageDir.getAbsolutePath());
+
+    // The deletion is only recorded in the journal
+    File journalFile = new File(storageDir, nodeName + "_journal.txt");
+    assertTrue(journalFile.exists(), "Journal file should be created");
+    assertTrue(BuildHistoryFileManager.readIndexFile(nodeName, storageDir.getAbsolutePath()).isEmpty(), "Index should be empty after deletion");
+
+    // An entry added after the tombstone is not affected by it
+    BuildHistoryFileManager.addRunToNodeIndex(nodeName, run, storageDir.getAbsolutePath());
+    assertEquals(1, BuildHistoryFileManager.readIndexFile(nodeName, storageDir.getAbsolutePath()).size());
+
+    BuildHistoryFileManager.compact(nodeName, storageDir.getAbsolutePath());
+    assertFalse(journalFile.exists(), "Journal file should be removed by compaction");
+    List<String> indexEntries = BuildHistoryFileManager.readIndexFile(nodeName, storageDir.getAbsolutePath());
+    assertEquals(1, indexEntries.size());
+    assertTrue(indexEntries.get(0).contains(jobName + BuildHistoryFileManager.separator + run.getNumber()), "Index should contain the job and build number");
+  }
+
+  @Test
+  void testInterruptedCompactionIsRecovered() throws Exception {
+    String nodeName = "test-node";
+    String jobName = "test-job";
+    String dir = storageDir.getAbsolutePath();
+    Run<?, ?> run = createDummyRun(jobName);
+    BuildHistoryFileManager.addRunToNodeIndex(nodeName, run, dir);
+    BuildHistoryFileManager.deleteJobSerialization(jobName, dir);
+    BuildHistoryFileManager.addRunToNodeIndex(nodeName, run, dir);
+    File journalFile = new File(storageDir, nodeName + "_journal.txt");
+    byte[] journal = Files.readAllBytes(journalFile.toPath());
+
+    // crash after the new files were committed but before the journal was deleted
+    BuildHistoryFileManager.compact(nodeName, dir);
+    Files.write(journalFile.toPath(), journal);
+    Files.writeString(new File(storageDir, nodeName + BuildHistoryFileManager.COMPACTION_MARKER_SUFFIX).toPath(), nodeName + "_index.txt");
+    NodeIndexCache.clear();
+    BuildHistoryFileManager.recoverCompactions(dir);
+    assertFalse(journalFile.exists(), "Journal should be deleted as it is part of the compacted files");
+    assertEquals(1, BuildHistoryFileManager.readIndexFile(nodeName, dir).size(), "Delete must not be applied again");
+
+    // crash before the commit leaves the old files
+    File stagedFile = new File(storageDir, nodeName + "_index.txt" + BuildHistoryFileManager.STAGED_SUFFIX);
+    Files.writeString(stagedFile.toPath(), "");
+    NodeIndexCache.clear();
+    BuildHistoryFileManager.recoverCompactions(dir);
+    assertFalse(stagedFile.exists(), "Uncommitted files should be dropped");
+    assertEquals(1, BuildHistoryFileManager.readIndexFile(nodeName, dir).size());
+  }
+
+  @Test
+  void testMigrationToBinaryIndex() throws Exception {
+    String nodeName = "test-node";
+    String jobName = "test-job";
+    Run<?, ?> run = createDummyRun(jobName);
+
+    BuildHistoryFileManager.addRunToNodeIndex(nodeName, run, storageDir.getAbsolutePath());
+    BuildHistoryFileManager.updateResult(nodeName, run, storageDir.getAbsolutePath());
+    File indexFile = new File(storageDir, nodeName + "_index.txt");
+    File binaryIndexFile = new File(storageDir, nodeName + "_index.bin");
+    assertTrue(indexFile.exists(), "Text index file should be created");
+
+    AgentBuildHistoryConfig.get().setBinaryIndexEnabled(true);
+    assertTrue(BuildHistoryFileManager.getNodeNamesToCompact(storageDir.getAbsolutePath()).contains(nodeName), "Node should be migrated");
+    BuildHistoryFileManager.compact(nodeName, storageDir.getAbsolutePath());
+    assertFalse(indexFile.exists(), "Text index file should be removed after migration");
+    assertTrue(binaryIndexFile.exists(), "Binary index file should be created");
+
+    // Entries are appended to the binary index after the migration
+    Run<?, ?> run2 = createDummyRun("test-job-2");
+    BuildHistoryFileManager.addRunToNodeIndex(nodeName, run2, storageDir.getAbsolutePath());
+    List<String> indexEntries = BuildHistoryFileManager.readIndexFile(nodeName, storageDir.getAbsolutePath());
+    assertEquals(2, indexEntries.size());
+    assertTrue(indexEntries.get(0).startsWith(jobName + ";1;"), "Index should contain the first job");
+    assertTrue(indexEntries.get(0).endsWith(";SUCCESS"), "Index should contain the result of the first job");
+    assertTrue(indexEntries.get(1).startsWith("test-job-2;1;"), "Index should contain the second job");
+    assertTrue(BuildHistoryFileManager.getAllSavedNodeNames(storageDir.getAbsolutePath()).contains(nodeName), "Node should still be listed");
+  }
+
+  @Test
+  void testTornBinaryAppendIsCutOff() throws Exception {
+    File file = new File(storageDir, "torn_index.bin");
+    NodeIndex entries = new NodeIndex();
+    entries.add(1, 1, 1000L, NodeIndex.NO_RESULT, -1);
+    BinaryIndexFile.append(file, entries);
+    // an interrupted append leaves a partial record
+    Files.write(file.toPath(), new byte[] {1, 2, 3}, StandardOpenOption.APPEND);
+
+    NodeIndex more = new NodeIndex();
+    more.add(1, 2, 2000L, NodeIndex.NO_RESULT, -1);
+    BinaryIndexFile.append(file, more);
+    assertEquals(BinaryIndexFile.HEADER_SIZE + 2 * BinaryIndexFile.RECORD_SIZE, file.length());
+    NodeIndex index = BinaryIndexFile.read(file);
+    assertEquals(2, index.size());
+    assertEquals(2, index.getNumber(1));
+    assertEquals(2000L, index.getStartTime(1));
+  }
+
+  @Test
+  void testCachedIndexIsUpdated() throws Exception {
+    String nodeName = "test-node";
+    String jobName = "test-job";
+    Run<?, ?> run = createDummyRun(jobName);
+
+    BuildHistoryFileManager.addRunToNodeIndex(nodeName, run, storageDir.getAbsolutePath());
+    assertEquals(1, BuildHistoryFileManager.readIndexFile(nodeName, storageDir.getAbsolutePath()).size());
+    assertNotNull(NodeIndexCache.get(nodeName, storageDir.getAbsolutePath()), "Index should be cached after reading");
+
+    // Changes are applied to the cached index
+    BuildHistoryFileManager.renameJob(jobName, "renamed-job", storageDir.getAbsolutePath());
+    List<String> indexEntries = BuildHistoryFileManager.readIndexFile(nodeName, storageDir.getAbsolutePath());
+    assertEquals(1, indexEntries.size());
+    assertTrue(indexEntries.get(0).startsWith("renamed-job;"), "Cached index should contain the new job name");
+
+    // Without cache the same state is read from disk
+    AgentBuildHistoryConfig.get().setCacheMaxNodes(0);
+    assertNull(NodeIndexCache.get(nodeName, storageDir.getAbsolutePath()), "Index should be evicted");
+    assertEquals(indexEntries, BuildHistoryFileManager.readIndexFile(nodeName, storageDir.getAbsolutePath()));
+  }
+
+  @Test
+  void testDeleteJobOnlyTouchesAffectedNodes() throws Exception {
+    String nodeName1 = "node-1";
+    String nodeName2 = "node-2";
+
+    BuildHistoryFileManager.addRunToNodeIndex(nodeName1, createDummyRun("job1"), storageDir.getAbsolutePath());
+    BuildHistoryFileManager.addRunToNodeIndex(nodeName2, createDummyRun("job2"), storageDir.getAbsolutePath());
+    assertEquals(Set.of(nodeName1), JobNodeIndex.get(storageDir.getAbsolutePath()).getNodes("job1"));
+
+    BuildHistoryFileManager.deleteJobSerialization("job1", storageDir.getAbsolutePath());
+
+    assertTrue(BuildHistoryFileManager.readIndexFile(nodeName1, storageDir.getAbsolutePath()).isEmpty(), "Job should be removed from node 1");
+    assertFalse(new File(storageDir, nodeName2 + "_journal.txt").exists(), "Node 2 should not be touched");
+    assertEquals(1, BuildHistoryFileManager.readIndexFile(nodeName2, storageDir.getAbsolutePath()).size());
+    assertTrue(JobNodeIndex.get(storageDir.getAbsolutePath()).getNodes("job1").isEmpty(), "Job should be removed from the job node index");
+  }
+
+  @Test
+  void testDuplicateRunIsNotAdded() throws Exception {
+    String nodeName = "test-node";
+    Run<?, ?> run1 = createDummyRun("job1");
+    Run<?, ?> run2 = createDummyRun("job2");
+
+    // Without cached index the bloom filter decides whether the index has to be read
+    AgentBuildHistoryConfig.get().setCacheMaxNodes(0);
+    BuildHistoryFileManager.addRunToNodeIndex(nodeName, run1, storageDir.getAbsolutePath());
+    BuildHistoryFileManager.addRunToNodeIndex(nodeName, run1, storageDir.getAbsolutePath());
+    BuildHistoryFileManager.addRunsToNodeIndex(nodeName, List.of(run2, run1, run2), storageDir.getAbsolutePath());
+
+    List<String> indexEntries = BuildHistoryFileManager.readIndexFile(nodeName, storageDir.getAbsolutePath());
+    assertEquals(2, indexEntries.size());
+    assertTrue(indexEntries.get(0).startsWith("job1;1;"), "Index should contain the first job");
+    assertTrue(indexEntries.get(1).startsWith("job2;1;"), "Index should contain the second job");
+  }
+
+  @Test
+  void testSegmentsAndRetention() throws Exception {
+    String nodeName = "test-node";
+    long now = System.currentTimeMillis();
+    long lastMonth = now - TimeUnit.DAYS.toMillis(30);
+    long lastYear = now - TimeUnit.DAYS.toMillis(400);
+    File indexFile = new File(storageDir, nodeName + "_index.txt");
+    Files.writeString(indexFile.toPath(), "job;1;" + lastYear + ";SUCCESS\njob;2;" + lastMonth + ";FAILURE\njob;3;" + now + "\n");
+
+    AgentBuildHistoryConfig.get().setRetentionDays(365);
+    BuildHistoryFileManager.compact(nodeName, storageDir.getAbsolutePath());
+
+    // Old entries are moved into a segment, the expired entry is dropped
+    File segmentFile = new File(storageDir, nodeName + "_segment_" + IndexSegments.segmentStart(lastMonth) + ".txt");
+    assertTrue(segmentFile.exists(), "Segment file should be created");
+    int jobId = JobNameDictionary.get(storageDir.getAbsolutePath()).lookup("job");
+    assertEquals(List.of("#" + jobId + ";3;" + now), Files.readAllLines(indexFile.toPath()));
+    List<String> indexEntries = BuildHistoryFileManager.readIndexFile(nodeName, storageDir.getAbsolutePath());
+    assertEquals(List.of("job;2;" + lastMonth + ";FAILURE", "job;3;" + now), indexEntries);
+
+    // Changes are applied to entries in segments as well
+    AgentBuildHistoryConfig.get().setCacheMaxNodes(0);
+    BuildHistoryFileManager.deleteExecution(nodeName, "job", 2, storageDir.getAbsolutePath());
+    assertEquals(List.of("job;3;" + now), BuildHistoryFileManager.readIndexFile(nodeName, storageDir.getAbsolutePath()));
+    assertEquals(1, BuildHistoryFileManager.readIndex(nodeName, storageDir.getAbsolutePath(), now, Long.MAX_VALUE).size());
+
+    BuildHistoryFileManager.compact(nodeName, storageDir.getAbsolutePath());
+    assertFalse(segmentFile.exists(), "Empty segment should be removed");
+  }
+
+  @Test
+  void testRenameJobOnlyUpdatesDictionary() throws Exception {
+    String nodeName = "test-node";
+    Run<?, ?> run = createDummyRun("old-job");
+    BuildHistoryFileManager.addRunToNodeIndex(nodeName, run, storageDir.getAbsolutePath());
+    File indexFile = new File(storageDir, nodeName + "_index.txt");
+    List<String> fileLines = Files.readAllLines(indexFile.toPath());
+    assertTrue(fileLines.get(0).startsWith("#"), "Index file should refer to the job by id");
+
+    BuildHistoryFileManager.renameJob("old-job", "new-job", storageDir.getAbsolutePath());
+    assertEquals(fileLines, Files.readAllLines(indexFile.toPath()), "Index file should not be rewritten");
+    assertFalse(new File(storageDir, nodeName + "_journal.txt").exists(), "Rename should not be journaled");
+    assertTrue(BuildHistoryFileManager.readIndexFile(nodeName, storageDir.getAbsolutePath()).get(0).startsWith("new-job;1;"));
+
+    // Index files of older versions are converted before the rename
+    Files.writeString(indexFile.toPath(), "new-job;1;" + run.getStartTimeInMillis() + "\n");
+    NodeIndexCache.clear();
+    BuildHistoryFileManager.renameJob("new-job", "newer-job", storageDir.getAbsolutePath());
+    assertTrue(Files.readAllLines(indexFile.toPath()).get(0).startsWith("#"), "Index file should be converted");
+    assertTrue(BuildHistoryFileManager.readIndexFile(nodeName, storageDir.getAbsolutePath()).get(0).startsWith("newer-job;1;"));
+  }
+
+  @Test
+  void testSortOrderIsMaintained() {
+    JobNameDictionary dictionary = JobNameDictionary.get(storageDir.getAbsolutePath());
+    int jobB = dictionary.getId("b-job");
+    int jobA = dictionary.getId("a-job");
+    NodeIndex index = new NodeIndex();
+    index.add(jobB, 1, 300, NodeIndex.NO_RESULT, 0);
+    index.add(jobA, 2, 100, NodeIndex.NO_RESULT, 0);
+    index.add(jobA, 1, 200, NodeIndex.NO_RESULT, 0);
+    assertArrayEquals(new int[] {1, 2, 0}, Arrays.copyOf(index.getOrder("startTime", dictionary), index.size()));
+    assertArrayEquals(new int[] {2, 1, 0}, Arrays.copyOf(index.getOrder("build", dictionary), index.size()));
+
+    // The orders are updated when entries are added or removed
+    index.add(jobB, 2, 150, NodeIndex.NO_RESULT, 0);
+    index.remove(jobA, 1);
+    assertArrayEquals(new int[] {1, 2, 0}, Arrays.copyOf(index.getOrder("startTime", dictionary), index.size()));
+    assertArrayEquals(new int[] {1, 0, 2}, Arrays.copyOf(index.getOrder("build", dictionary), index.size()));
+
+    // Renaming a job changes the build order
+    dictionary.rename("a-job", "c-job");
+    assertArrayEquals(new int[] {0, 2, 1}, Arrays.copyOf(index.getOrder("build", dictionary), index.size()));
+
+    // Bulk adds drop the orders, they are sorted again on next use
+    NodeIndex added = new NodeIndex();
+    added.add(jobB, 3, 50, NodeIndex.NO_RESULT, 0);
+    added.add(jobA, 3, 250, NodeIndex.NO_RESULT, 0);
+    index.addAll(added, null);
+    assertFalse(index.hasOrder("startTime", dictionary));
+    assertArrayEquals(new int[] {3, 1, 2, 4, 0}, Arrays.copyOf(index.getOrder("startTime", dictionary), index.size()));
+  }
+
+  @Test
+  void testSetResultUsesRunPositions() {
+    NodeIndex index = new NodeIndex();
+    index.add(1, 1, 100, NodeIndex.NO_RESULT, 0);
+    index.add(1, 2, 200, NodeIndex.NO_RESULT, 0);
+    assertTrue(index.contains(1, 2));
+    // entries added after the lookup and entries moved by a removal are found as well
+    index.add(2, 1, 300, NodeIndex.NO_RESULT, 0);
+    index.setResult(2, 1, NodeIndex.toCode(Result.FAILURE));
+    index.remove(1, 1);
+    index.setResult(1, 2, NodeIndex.toCode(Result.SUCCESS));
+    index.setResult(1, 1, NodeIndex.toCode(Result.SUCCESS));
+    assertEquals(Result.SUCCESS, index.getResult(0));
+    assertEquals(Result.FAILURE, index.getResult(1));
+    assertEquals(1, index.getResultCount(Result.SUCCESS));
+    assertEquals(0, index.getResultCount(null));
+  }
+
+  @Test
+  void testSelectFirstMatchesSortOrder() {
+    JobNameDictionary dictionary = JobNameDictionary.get(storageDir.getAbsolutePath());
+    int[] jobIds = {dictionary.getId("job-c"), dictionary.getId("job-a"), dictionary.getId("job-b")};
+    Random random = new Random(42);
+    NodeIndex index = new NodeIndex();
+    for (int i = 0; i < 1000; i++) {
+      index.add(jobIds[random.nextInt(jobIds.length)], i, random.nextInt(100), NodeIndex.NO_RESULT, 0);
+    }
+    for (String sortColumn : List.of("startTime", "build")) {
+      // Select on a copy, as the original keeps its sort permutation
+      int[] first = index.copy().selectFirst(sortColumn, true, 20, i -> i % 3 != 0, dictionary);
+      int[] order = index.getOrder(sortColumn, dictionary);
+      int[] expected = new int[20];
+      for (int k = index.size() - 1, n = 0; n < expected.length; k--) {
+        if (order[k] % 3 != 0) {
+          expected[n++] = order[k];
+        }
+      }
+      assertArrayEquals(expected, first, "First entries sorted by " + sortColumn);
+    }
+  }
+
   // Helper method to create a dummy Run object
   private Run<?, ?> createDummyRun(String jobName) throws Exception {
     // Use JenkinsRule to create a FreeStyle project (or any other type of job)